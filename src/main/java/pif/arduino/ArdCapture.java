@@ -0,0 +1,247 @@
+package pif.arduino;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.MappedByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.LoggerConfig;
+
+import pif.arduino.tools.*;
+
+/**
+ * Main class for offline examination of sessions recorded with ArdConsole --record :
+ * extraction of a time range, and search of byte patterns or regular expression.
+ *
+ * Capture segments are memory mapped, a sparse time index is built on first
+ * use (and cached as capture.idx), and searches run in parallel on segments.
+ * @author pif
+ */
+public class ArdCapture {
+	private static Logger logger = LogManager.getLogger();
+
+	static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss.SSS";
+
+	static Options options;
+	static {
+		options = new Options();
+		options.addOption("h", "help", false, "usage");
+		options.addOption("d", "debug", false, "set debug mode");
+		options.addOption("f", "from", true, "begin at this time, in seconds since session start");
+		options.addOption("t", "to", true, "end at this time, in seconds since session start");
+		options.addOption("s", "search", true, "search this text (may be repeated)");
+		options.addOption("x", "search-hex", true, "search these bytes, given as hex digits like 0d0a (may be repeated)");
+		options.addOption("e", "regex", true, "search lines matching this regular expression");
+		options.addOption("n", "max", true, "stop after this number of occurrences");
+		options.addOption("D", "direction", true, "rx (default), tx or both");
+		options.addOption("o", "output", true, "output mode : hex, ascii (default) or raw");
+	}
+
+	protected CaptureIndex index;
+	protected long from = 0;
+	protected long to = Long.MAX_VALUE;
+	protected int direction = SessionRecorder.RX;
+	protected String outputMode = "ascii";
+	protected PrintStream output = System.out;
+
+	public static void main(String[] args) {
+		CommandLine commandLine = null;
+		try {
+			commandLine = new BasicParser().parse(options, args);
+		} catch (ParseException e) {
+			logger.error(e);
+			usage(1);
+		}
+		if (commandLine.hasOption('h') || commandLine.getArgs().length != 1) {
+			usage(commandLine.hasOption('h') ? 0 : 1);
+		}
+
+		if (commandLine.hasOption('d')) {
+			LoggerContext ctx = (LoggerContext) LogManager.getContext(false);
+			Configuration config = ctx.getConfiguration();
+			LoggerConfig loggerConfig = config.getLoggerConfig(LogManager.ROOT_LOGGER_NAME);
+			loggerConfig.setLevel(org.apache.logging.log4j.Level.DEBUG);
+			ctx.updateLoggers();
+		}
+
+		try {
+			new ArdCapture(commandLine).run(commandLine);
+		} catch (IllegalArgumentException e) {
+			logger.error(e.getMessage());
+			usage(1);
+		} catch (IOException e) {
+			logger.error("Can't read capture", e);
+			System.exit(2);
+		}
+	}
+
+	protected static void usage(int exitCode) {
+		HelpFormatter fmt = new HelpFormatter();
+		fmt.printHelp(80, "java -cp main_jar_file.jar pif.arduino.ArdCapture options ... capture_file",
+				"Without search option, data of time range are output.\noptions :", options, "");
+		System.exit(exitCode);
+	}
+
+	ArdCapture(CommandLine commandLine) throws IOException {
+		if (commandLine.hasOption('f')) {
+			from = parseTime(commandLine.getOptionValue('f'));
+		}
+		if (commandLine.hasOption('t')) {
+			to = parseTime(commandLine.getOptionValue('t'));
+		}
+		if (commandLine.hasOption('D')) {
+			switch (commandLine.getOptionValue('D')) {
+			case "rx":
+				direction = SessionRecorder.RX;
+				break;
+			case "tx":
+				direction = SessionRecorder.TX;
+				break;
+			case "both":
+				direction = -1;
+				break;
+			default:
+				throw new IllegalArgumentException("direction must be rx, tx or both");
+			}
+		}
+		if (commandLine.hasOption('o')) {
+			outputMode = commandLine.getOptionValue('o');
+			if (!outputMode.equals("hex") && !outputMode.equals("ascii") && !outputMode.equals("raw")) {
+				throw new IllegalArgumentException("output mode must be hex, ascii or raw");
+			}
+		}
+		index = CaptureIndex.open(new File(commandLine.getArgs()[0]));
+	}
+
+	/**
+	 * @return time in ns since session start
+	 */
+	static long parseTime(String seconds) {
+		try {
+			return (long)(Double.parseDouble(seconds) * TimeUnit.SECONDS.toNanos(1));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("bad time '" + seconds + "', must be seconds since session start");
+		}
+	}
+
+	void run(CommandLine commandLine) throws IOException {
+		List<byte[]> patterns = new ArrayList<byte[]>();
+		if (commandLine.hasOption('s')) {
+			for (String text : commandLine.getOptionValues('s')) {
+				patterns.add(text.getBytes());
+			}
+		}
+		if (commandLine.hasOption('x')) {
+			for (String hex : commandLine.getOptionValues('x')) {
+				patterns.add(hexTools.fromHex(hex));
+			}
+		}
+
+		CaptureSearch search;
+		if (commandLine.hasOption('e')) {
+			if (!patterns.isEmpty()) {
+				throw new IllegalArgumentException("can't search both text and regular expression");
+			}
+			try {
+				search = new CaptureSearch(index, Pattern.compile(commandLine.getOptionValue('e')));
+			} catch (PatternSyntaxException e) {
+				throw new IllegalArgumentException(e.getMessage());
+			}
+		} else if (!patterns.isEmpty()) {
+			search = new CaptureSearch(index, patterns.toArray(new byte[patterns.size()][]));
+		} else {
+			extract();
+			return;
+		}
+		search.setRange(from, to).setDirection(direction);
+		if (commandLine.hasOption('n')) {
+			search.setMaxHits(Integer.parseInt(commandLine.getOptionValue('n')));
+		}
+
+		long start = System.nanoTime();
+		List<CaptureSearch.Hit> hits = search.run();
+		logger.debug(String.format("searched in %.3f s", (System.nanoTime() - start) / 1e9));
+		for (CaptureSearch.Hit hit : hits) {
+			output.println(describe(hit));
+			render(hit.data, hit.data.length, new HexDumpRenderer(false), new AsciiRenderer());
+			output.println();
+		}
+		logger.info(hits.size() + " occurrence(s) found");
+	}
+
+	String describe(CaptureSearch.Hit hit) {
+		SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
+		return String.format("+%.6f s (%s) %s, %s offset 0x%x",
+				hit.time / 1e9,
+				dateFormat.format(new Date(index.getStartMillis() + TimeUnit.NANOSECONDS.toMillis(hit.time))),
+				hit.direction == SessionRecorder.RX ? "received" : "sent",
+				index.getFiles().get(hit.segment).getName(), hit.offset);
+	}
+
+	/**
+	 * output records of time range
+	 */
+	void extract() throws IOException {
+		HexDumpRenderer hexRenderer = new HexDumpRenderer();
+		AsciiRenderer asciiRenderer = new AsciiRenderer();
+		byte[] data = new byte[4096];
+		for (int s = 0; s < index.getSegmentCount(); s++) {
+			if (!index.overlaps(s, from, to)) {
+				continue;
+			}
+			MappedByteBuffer buffer = CaptureReader.map(index.getFiles().get(s));
+			buffer.position(index.seek(s, from));
+			while (buffer.remaining() >= SessionRecorder.RECORD_HEADER_SIZE) {
+				int length = buffer.getInt();
+				long time = buffer.getLong();
+				byte recordDirection = buffer.get();
+				if (time > to) {
+					break;
+				}
+				if (time < from || (direction != -1 && direction != recordDirection)) {
+					buffer.position(buffer.position() + length);
+					continue;
+				}
+				if (data.length < length) {
+					data = new byte[length];
+				}
+				buffer.get(data, 0, length);
+				render(data, length, hexRenderer, asciiRenderer);
+			}
+		}
+		output.println();
+		output.flush();
+	}
+
+	void render(byte[] data, int length, HexDumpRenderer hexRenderer, AsciiRenderer asciiRenderer) {
+		switch (outputMode) {
+		case "hex":
+			String lines = hexRenderer.render(data, length);
+			if (!lines.isEmpty()) {
+				output.println(lines);
+			}
+			break;
+		case "ascii":
+			output.print(asciiRenderer.render(data, length));
+			break;
+		default:
+			output.write(data, 0, length);
+		}
+	}
+}
@@ -4,7 +4,11 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
 import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.List;
 
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
@@ -41,6 +45,10 @@ public class ArdConsole implements Console.ConsolePeer, FileScanner.FileScanHand
 	protected String portName = null;
 	protected String uploadPortName = null;
 	protected int baudrate = DEFAULT_BAUDRATE;
+	protected FlushPolicy flushPolicy = FlushPolicy.DEFAULT;
+	protected MySerial.FlowControl flowControl = MySerial.FlowControl.NONE;
+	protected Pacing pacing = Pacing.NONE;
+	protected SessionRecorder recorder = null;
 
 	protected File uploadFile;
 	protected FileScanner scanner;
@@ -48,6 +56,10 @@ public class ArdConsole implements Console.ConsolePeer, FileScanner.FileScanHand
 	public static final String DEFAULT_UPLOAD_COMMAND = "arduino-cli upload";
 	String uploadCommand = DEFAULT_UPLOAD_COMMAND;
 	ProgramLauncher uploadProcess = null;
+	protected ImageCache imageCache = new ImageCache();
+	// upload with built-in STK500v1 uploader instead of upload command
+	protected boolean nativeUpload = false;
+	protected int uploadBaudrate = Stk500Uploader.DEFAULT_BAUDRATE;
 
 	protected MySerial serial = null;
 
@@ -58,13 +70,26 @@ public class ArdConsole implements Console.ConsolePeer, FileScanner.FileScanHand
 		options = Console.getOptions();
 		options.addOption("a", "arduino-cli", true, "arduino-cli command and global options");
 
-		options.addOption("p", "port", true, "set port to connect to for communication");
+		options.addOption("p", "port", true, "set port to connect to for communication."
+				+ " May also be tcp://host:port, or loop:// for an echo loopback"
+				+ " (loop://?bandwidth=bytes/s&latency=ms&jitter=ms, bandwidth defaults to baudrate/10),"
+				+ " or replay://file to replay a recorded session (replay://file?speed=10 or speed=max)");
 		options.addOption("P", "upload-port", true, "set port to connect to for upload command (defaults to communication one)");
 
 		options.addOption("s", "baudrate", true, "set port baudrate for communication (defaults to " + DEFAULT_BAUDRATE + ")");
+		options.addOption("w", "flow", true, "flow control : none (default), rtscts or xonxoff");
+		options.addOption("g", "pace", true, "pacing of outgoing data : none (default) or comma separated list of"
+				+ " rate=bytes/s, chunk=bytes, gap=ms");
+		options.addOption("e", "record", true, "record every incoming and outgoing chunk into file.000, file.001 ...");
+		options.addOption("F", "flush", true, "policy to flush incoming data to display : default, interactive, bulk"
+				+ " and/or comma separated list of idle=ms, size=bytes, eol, noeol, latency=ms");
 
 		options.addOption("f", "file", true, "file to scan / upload");
+		options.addOption("W", "watch", true, "comma separated list of files or globs (like build/*.hex) to watch,"
+				+ " changed one is uploaded");
 		options.addOption("b", "boardname", true, "set board fqbn (mandatory for upload)");
+		options.addOption("n", "native", false, "upload with built-in STK500v1 uploader (Optiboot boards like uno or nano)"
+				+ " instead of arduino-cli, thru console port if it's the upload one");
 		options.addOption("u", "upload", false, "launch upload at startup");
 		options.addOption("d", "debug", false, "set debug level");
 
@@ -116,6 +141,28 @@ public class ArdConsole implements Console.ConsolePeer, FileScanner.FileScanHand
 			if (commandLine.hasOption('s')) {
 				baudrate = Integer.parseInt(commandLine.getOptionValue('s'));
 			}
+			if (commandLine.hasOption('F')) {
+				try {
+					flushPolicy = FlushPolicy.parse(commandLine.getOptionValue('F'));
+				} catch(IllegalArgumentException e) {
+					logger.error(e.getMessage());
+					usage(1);
+				}
+			}
+			try {
+				if (commandLine.hasOption('w')) {
+					flowControl = MySerial.FlowControl.parse(commandLine.getOptionValue('w'));
+				}
+				if (commandLine.hasOption('g')) {
+					pacing = Pacing.parse(commandLine.getOptionValue('g'));
+				}
+			} catch(IllegalArgumentException e) {
+				logger.error(e.getMessage());
+				usage(1);
+			}
+			if (commandLine.hasOption('e')) {
+				startRecord(commandLine.getOptionValue('e'));
+			}
 			if (commandLine.hasOption('b')) {
 				boardName = commandLine.getOptionValue('b');
 			}
@@ -123,6 +170,7 @@ public class ArdConsole implements Console.ConsolePeer, FileScanner.FileScanHand
 			if (commandLine.hasOption('a')) {
 				uploadCommand = commandLine.getOptionValue('a');
 			}
+			nativeUpload = commandLine.hasOption('n');
 	
 			if (commandLine.hasOption('f')) {
 				uploadFile = new File(commandLine.getOptionValue('f'));
@@ -145,8 +193,13 @@ public class ArdConsole implements Console.ConsolePeer, FileScanner.FileScanHand
 				if (uploadFile != null) {
 					scanner = new FileScanner(uploadFile, this);
 				}
+				if (commandLine.hasOption('W')) {
+					for (String spec : commandLine.getOptionValue('W').split(",")) {
+						watch(spec);
+					}
+				}
 			} catch (FileNotFoundException e) {
-				logger.error("File to upload doesn't exists");
+				logger.error("File to upload doesn't exists : " + e.getMessage());
 				usage(2);
 			}
 	
@@ -181,13 +234,24 @@ public class ArdConsole implements Console.ConsolePeer, FileScanner.FileScanHand
 		String help = "  !port xxx : set current serial port for communication (like -p option)\n"
 				+ "  !uploadPort nn : set baudrate for upload\n"
 				+ "  !baudrate nn : set baudrate for communication\n"
-				+ "  !uploadBaudrate nn : set baudrate for upload\n"
+				+ "  !flow mode : set flow control (like -w option), taken in account at next connection\n"
+				+ "  !pace [pacing] : display or set pacing of outgoing data (like -g option)\n"
+				+ "  !record start file : record incoming and outgoing data into file.000, file.001 ... (like -e option)\n"
+				+ "  !record stop : stop recording\n"
+				+ "  !flush [policy] : display or set policy to flush incoming data to display (like -F option)\n"
+				+ "  !uploadBaudrate nn : set baudrate for native upload (defaults to " + Stk500Uploader.DEFAULT_BAUDRATE + ")\n"
 				+ "  !boardname board : set boardname\n"
 				+ "  !connect and !disconnect : as the name suggests ...\n"
 				+ "  !reset : try to reset serial port, then reconnect if was connected (useful after upload in some cases)\n"
-				+ "  !upload : launch upload then reconnect if was connected\n"
-				+ "  !file filename : set file path to scan for modification"
-				+ "  !status : display current connexion status";
+				+ "  !upload [--force] [--native|--external] : launch upload then reconnect if was connected.\n"
+				+ "    Upload is skipped if image is the last one flashed on port and board, unless forced.\n"
+				+ "    Native upload (like -n option) uses built-in STK500v1 uploader, writing only changed pages\n"
+				+ "  !file filename : set file path to scan for modification\n"
+				+ "  !watch [ path | glob | off ] : display watched files, watch one more file or glob (like -W option),\n"
+				+ "    or stop watching\n"
+				+ "  !status : display current connexion status\n"
+				+ "  !stats [ on | off | reset ] : parse numeric telemetry in incoming lines (key=value or CSV),\n"
+				+ "    and display per field count, last, min, mean, p50, p99 and max";
 		System.out.println(help);
 	}
 
@@ -212,7 +276,7 @@ public class ArdConsole implements Console.ConsolePeer, FileScanner.FileScanHand
 		switch(command) {
 		case "upload":
 		case "u":
-			launchUpload();
+			upload(args);
 			break;
 		case "port":
 			portName = args;
@@ -220,9 +284,63 @@ public class ArdConsole implements Console.ConsolePeer, FileScanner.FileScanHand
 		case "uploadPort":
 			uploadPortName = args;
 			break;
+		case "uploadBaudrate":
+			uploadBaudrate = Integer.parseInt(args);
+			break;
 		case "baudrate":
 			baudrate = Integer.parseInt(args);
 			break;
+		case "flush":
+			if (args == null) {
+				System.out.println("Flush policy " + flushPolicy);
+				break;
+			}
+			try {
+				flushPolicy = FlushPolicy.parse(args);
+			} catch(IllegalArgumentException e) {
+				logger.error(e.getMessage());
+				break;
+			}
+			if (serial instanceof BufferedSerial) {
+				((BufferedSerial)serial).setFlushPolicy(flushPolicy);
+			}
+			break;
+		case "flow":
+			if (args == null) {
+				System.out.println("Flow control " + flowControl);
+				break;
+			}
+			try {
+				flowControl = MySerial.FlowControl.parse(args);
+			} catch(IllegalArgumentException e) {
+				logger.error(e.getMessage());
+			}
+			break;
+		case "pace":
+			if (args == null) {
+				System.out.println("Pacing " + pacing);
+				break;
+			}
+			try {
+				pacing = Pacing.parse(args);
+			} catch(IllegalArgumentException e) {
+				logger.error(e.getMessage());
+				break;
+			}
+			if (serial != null) {
+				serial.getWriter().setPacing(pacing);
+			}
+			break;
+		case "record":
+			if ("stop".equals(args)) {
+				stopRecord();
+			} else if (args != null && args.startsWith("start ")) {
+				stopRecord();
+				startRecord(args.substring(6).trim());
+			} else {
+				logger.error("record command needs 'start file' or 'stop'");
+			}
+			break;
 		case "boardname":
 		case "fqbn":
 			boardName = args;
@@ -243,17 +361,37 @@ public class ArdConsole implements Console.ConsolePeer, FileScanner.FileScanHand
 				}
 				try {
 					scanner = new FileScanner(new File(args), this);
+					uploadFile = new File(args);
 				} catch (FileNotFoundException e) {
 					logger.error("Bad file path to scan");
 				}
 			}
 			break;
+		case "watch":
+			if (args == null) {
+				System.out.println(scanner == null ? "No watched file" : "Watching " + scanner);
+			} else if (args.equals("off")) {
+				if (scanner != null) {
+					scanner.stop();
+					scanner = null;
+				}
+			} else {
+				try {
+					watch(args);
+				} catch (FileNotFoundException e) {
+					logger.error("Can't watch " + args + " : " + e.getMessage());
+				}
+			}
+			break;
 		case "reset":
 			resetPort();
 			break;
 		case "status":
 			status(System.out);
 			break;
+		case "stats":
+			stats(args);
+			break;
 		case "help":
 		case "?":
 			// trap command to output our own help
@@ -283,16 +421,30 @@ public class ArdConsole implements Console.ConsolePeer, FileScanner.FileScanHand
 			logger.debug("stopping file scanner..");
 			scanner.stop();
 		}
+		stopRecord();
+	}
+
+	/**
+	 * watch one more file or glob, creating scanner if needed
+	 */
+	protected void watch(String spec) throws FileNotFoundException {
+		if (scanner == null) {
+			scanner = new FileScanner(this, false);
+		}
+		scanner.add(spec);
 	}
 
 	@Override
-	public void onFileChange() {
+	public void onFileChange(File file) {
+		FileScanner current = scanner;
+		String message = "** Change detected in " + file
+				+ (current == null ? "" : " (" + current.getLastLatency() + " ms after first change)") + " **";
 		try {
-			console.insertString("** Change detected in scanned file **");
+			console.insertString(message);
 		} catch (IOException e) {
-			logger.info("** Change detected in scanned file **");
-			
+			logger.info(message);
 		}
+		uploadFile = file;
 		launchUpload();
 	}
 
@@ -308,7 +460,9 @@ public class ArdConsole implements Console.ConsolePeer, FileScanner.FileScanHand
 			logger.debug("connecting..");
 			// serial must be null
 			try {
-				serial = new BufferedSerial(console, portName, baudrate);
+				serial = new BufferedSerial(console, portName, baudrate, flushPolicy, flowControl);
+				serial.getWriter().setPacing(pacing);
+				serial.setRecorder(recorder);
 				state = STATE_CONNECTED;
 			} catch (MySerialException e) {
 				logger.error("Can't connect", e);
@@ -343,6 +497,63 @@ public class ArdConsole implements Console.ConsolePeer, FileScanner.FileScanHand
 		}
 	}
 
+	protected void startRecord(String file) {
+		try {
+			recorder = new SessionRecorder(new File(file));
+			logger.info("Recording into " + SessionRecorder.segmentFile(recorder.getBase(), 0));
+		} catch (IOException e) {
+			logger.error("Can't record into " + file, e);
+			recorder = null;
+		}
+		if (serial != null) {
+			serial.setRecorder(recorder);
+		}
+	}
+
+	protected void stopRecord() {
+		if (recorder == null) {
+			return;
+		}
+		if (serial != null) {
+			serial.setRecorder(null);
+		}
+		recorder.close();
+		logger.info(MessageFormat.format("Recorded {0} bytes in {1} chunks, {2} segments, {3} bytes dropped",
+				recorder.getRecordedBytes(), recorder.getRecords(), recorder.getSegmentCount(),
+				recorder.getDroppedBytes()));
+		recorder = null;
+	}
+
+	/**
+	 * !stats command
+	 */
+	protected void stats(String args) {
+		if (args == null) {
+			TelemetryParser telemetry = console.getTelemetry();
+			if (telemetry == null) {
+				System.out.println("Telemetry parsing is off, use !stats on");
+			} else {
+				System.out.println(telemetry.report());
+			}
+			return;
+		}
+		switch (args) {
+		case "on":
+			console.setTelemetry(true);
+			break;
+		case "off":
+			console.setTelemetry(false);
+			break;
+		case "reset":
+			if (console.getTelemetry() != null) {
+				console.getTelemetry().reset();
+			}
+			break;
+		default:
+			logger.error("stats command needs on, off, reset or no argument");
+		}
+	}
+
 	protected void resetPort() {
 		if (portName == null) {
 			logger.error("port was not specified, can't connect");
@@ -368,6 +579,8 @@ public class ArdConsole implements Console.ConsolePeer, FileScanner.FileScanHand
 			}
 		}
 		output.println("Baudrate is " + baudrate);
+		output.println("Flow control " + flowControl + ", pacing " + pacing);
+		output.println("Flush policy " + flushPolicy);
 
 		switch(state) {
 		case STATE_NONE:
@@ -379,18 +592,115 @@ public class ArdConsole implements Console.ConsolePeer, FileScanner.FileScanHand
 			break;
 		case STATE_CONNECTED:
 			output.println("Connected");
+			MySerial current = serial;
+			if (current != null) {
+				output.println(MessageFormat.format("Received {0} bytes in {1} events",
+						current.getRxBytes(), current.getRxEvents()));
+				SerialWriter writer = current.getWriter();
+				output.println(MessageFormat.format("Sent {0} bytes in {1} writes, queue depth {2} (max {3}), write latency {4} µs (max {5})",
+						writer.getWrittenBytes(), writer.getBatchCount(), writer.getQueueDepth(), writer.getMaxQueueDepth(),
+						writer.getAverageLatency(), writer.getMaxLatency()));
+				if (current instanceof BufferedSerial) {
+					BufferedSerial buffered = (BufferedSerial)current;
+					output.println(MessageFormat.format("Flushed {0} bytes in {1} chunks, max buffer occupancy {2} bytes",
+							buffered.getFlushedBytes(), buffered.getFlushCount(), buffered.getMaxOccupancy()));
+				}
+			}
 			break;
 		}
+		gcStatus(output);
 
 		output.println("Line mode " + console.getLineMode());
 		output.println("Display mode " + console.getDisplayMode());
+		LineAssembler assembler = console.getLineAssembler();
+		if (assembler != null) {
+			output.println(MessageFormat.format("Line framing {0} : {1} lines, {2} cut",
+					console.getFraming(), assembler.getLines(), assembler.getCutLines()));
+		}
+		if (!console.getLineFilter().isEmpty() || console.getSuppressedLines() != 0) {
+			output.println(console.lineFilterStatus());
+		}
+		for (Trigger trigger : console.getTriggers()) {
+			output.println("Trigger " + trigger);
+		}
+
+		RenderQueue render = console.getRenderQueue();
+		output.println(MessageFormat.format("Rendered {0} bytes, render queue policy {1}, max depth {2}/{3}",
+				render.getRenderedBytes(), render.getPolicy(), render.getMaxDepth(), render.getCapacity()));
+		if (render.getDroppedBytes() != 0) {
+			output.println(MessageFormat.format("  {0} bytes dropped, {1} of them summarized",
+					render.getDroppedBytes(), render.getSummarizedBytes()));
+		}
 
 		if (uploadFile != null) {
-			output.println("Scanning file " + uploadFile);
+			output.println("Upload file " + uploadFile);
+		}
+		output.println(nativeUpload ? "Native upload at " + uploadBaudrate + " bauds" : "Upload command " + uploadCommand);
+		if (imageCache.getSkipped() != 0) {
+			output.println(MessageFormat.format("{0} unchanged image uploads skipped, {1} s saved",
+					imageCache.getSkipped(), imageCache.getSavedTime() / 1000.0));
+		}
+		FileScanner currentScanner = scanner;
+		if (currentScanner != null) {
+			output.println("Watching " + currentScanner);
+		}
+		SessionRecorder currentRecorder = recorder;
+		if (currentRecorder != null) {
+			output.println(MessageFormat.format("Recording into {0} : {1} bytes in {2} chunks, {3} segments, {4} bytes dropped",
+					currentRecorder.getBase(), currentRecorder.getRecordedBytes(), currentRecorder.getRecords(),
+					currentRecorder.getSegmentCount(), currentRecorder.getDroppedBytes()));
+		}
+	}
+
+	/**
+	 * output garbage collector counters, to check allocation pressure of receive path
+	 */
+	protected void gcStatus(PrintStream output) {
+		long count = 0, time = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			if (gc.getCollectionCount() > 0) {
+				count += gc.getCollectionCount();
+				time += gc.getCollectionTime();
+			}
+		}
+		output.println(MessageFormat.format("GC : {0} collections, {1} ms", count, time));
+	}
+
+	/**
+	 * !upload command
+	 */
+	protected void upload(String args) {
+		boolean force = false, useNative = nativeUpload;
+		if (args != null) {
+			for (String arg : args.split(" +")) {
+				switch (arg) {
+				case "--force":
+					force = true;
+					break;
+				case "--native":
+					useNative = true;
+					break;
+				case "--external":
+					useNative = false;
+					break;
+				default:
+					logger.error("bad upload argument " + arg + ", expected --force, --native or --external");
+					return;
+				}
+			}
 		}
+		launchUpload(force, useNative);
 	}
 
 	protected void launchUpload() {
+		launchUpload(false, nativeUpload);
+	}
+
+	/**
+	 * @param force true to upload even if image is already on board
+	 * @param useNative true to upload with built-in uploader
+	 */
+	protected void launchUpload(boolean force, boolean useNative) {
 		String effectivePort;
 	
 		if (uploadPortName == null) {
@@ -409,27 +719,74 @@ public class ArdConsole implements Console.ConsolePeer, FileScanner.FileScanHand
 			return;
 		}
 
+		if (uploadFile == null) {
+			logger.error("no file to upload");
+			return;
+		}
+		String hash = null;
+		try {
+			hash = ImageCache.hash(uploadFile);
+		} catch (IOException e) {
+			logger.warn("Can't hash " + uploadFile, e);
+		}
+		if (!force && hash != null && imageCache.isFlashed(effectivePort, boardName, hash)) {
+			logger.info("** image unchanged since last upload, skipped (use !upload --force) **");
+			imageCache.skipped(effectivePort, boardName);
+			return;
+		}
+
 		logger.info("** launching upload **");
 
 		short stateBefore = state;
+		// native uploader talks to bootloader thru console port if it's the upload one
+		boolean reuse = useNative && state == STATE_CONNECTED && effectivePort.equals(portName)
+				&& baudrate == uploadBaudrate;
 		switch(state) {
 		case STATE_UPLOADING: // possible ?
 			logger.warn("Already uploading, abort");
 			return;
 		case STATE_CONNECTED:
-			disconnect();
+			if (!reuse) {
+				disconnect();
+			}
 			break;
 		case STATE_FAIL:
 		case STATE_NONE:
 			// noop
 		}
 
-		String command = MessageFormat.format("{0} -p {1} -b {2} -i {3} -t", uploadCommand, effectivePort, boardName, uploadFile);
-		logger.info(command);
+		// pages of previous image may be skipped, read them before cache entry is dropped
+		byte[] previous = (useNative && !force) ? imageCache.getImage(effectivePort, boardName) : null;
+		// board content is unknown until upload succeeds, even if we're killed meanwhile
+		imageCache.forget(effectivePort, boardName);
+
+		long start = System.currentTimeMillis();
+		boolean success = useNative ? nativeUpload(effectivePort, hash, previous, reuse) : externalUpload(effectivePort);
+		if (!success) {
+			logger.error("Upload failed");
+		} else if (hash != null) {
+			imageCache.flashed(effectivePort, boardName, hash, System.currentTimeMillis() - start);
+		}
+
+		if (stateBefore == STATE_CONNECTED && !reuse) {
+			connect();
+		}
+	}
+
+	/**
+	 * upload with upload command
+	 * @return true if upload succeeded
+	 */
+	protected boolean externalUpload(String effectivePort) {
+		// argument list, thus file path may contain spaces
+		List<String> command = ProgramLauncher.splitCommand(uploadCommand);
+		command.addAll(Arrays.asList("-p", effectivePort, "-b", boardName, "-i", uploadFile.getPath(), "-t"));
 		uploadProcess = new ProgramLauncher(command);
-		if (!console.isRaw()) {
-			uploadProcess.setOutMask("\033[32m", "\033[0m\n");
-			uploadProcess.setErrMask("\033[32m", "\033[0m\n");
+		logger.info(uploadProcess);
+		if (console.isRaw()) {
+			// no colors
+			uploadProcess.setOutMask("", "");
+			uploadProcess.setErrMask("", "");
 		}
 		int status = -1;
 		try {
@@ -437,12 +794,51 @@ public class ArdConsole implements Console.ConsolePeer, FileScanner.FileScanHand
 		} catch (Exception e) {
 			logger.error("Upload execution failed", e);
 		}
-		if (status != 0) {
-			logger.error("Upload failed");
-		}
+		return status == 0;
+	}
 
-		if (stateBefore == STATE_CONNECTED) {
-			connect();
+	/**
+	 * upload with built-in STK500v1 uploader, writing only pages changed since last native upload
+	 * @param hash of image file, to keep image in cache
+	 * @param previous image flashed last time, whose identical pages are skipped, null to write all
+	 * @param reuse true to talk to bootloader thru console port, which stays open
+	 * @return true if upload succeeded
+	 */
+	protected boolean nativeUpload(String effectivePort, String hash, byte[] previous, boolean reuse) {
+		IntelHex image;
+		try {
+			image = IntelHex.parse(uploadFile);
+		} catch (IOException e) {
+			logger.error("Can't read image : " + e.getMessage());
+			return false;
+		}
+		short stateBefore = state;
+		MySerial target = reuse ? serial : null;
+		state = STATE_UPLOADING;
+		try {
+			if (target == null) {
+				target = new MySerial(effectivePort, uploadBaudrate) {};
+			}
+			Stk500Uploader uploader = new Stk500Uploader(target);
+			uploader.setPrevious(previous);
+			uploader.upload(image);
+			logger.info("** upload done : " + uploader + " **");
+			if (hash != null) {
+				imageCache.saveImage(effectivePort, boardName, hash, image.getData(), image.getLength());
+			}
+			return true;
+		} catch (IOException e) {
+			logger.error("Native upload failed : " + e.getMessage());
+			return false;
+		} finally {
+			if (!reuse && target != null) {
+				try {
+					target.dispose();
+				} catch (IOException e) {
+					logger.warn("Can't close upload port", e);
+				}
+			}
+			state = stateBefore;
 		}
 	}
 }
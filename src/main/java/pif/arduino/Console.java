@@ -5,14 +5,35 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import pif.arduino.tools.ArrivalTimes;
+import pif.arduino.tools.AsciiRenderer;
+import pif.arduino.tools.ByteMatcher;
+import pif.arduino.tools.HexDumpRenderer;
 import pif.arduino.tools.JlineConsole;
+import pif.arduino.tools.LineAssembler;
+import pif.arduino.tools.LineFilter;
+import pif.arduino.tools.RenderQueue;
+import pif.arduino.tools.TelemetryParser;
+import pif.arduino.tools.Trigger;
 import pif.arduino.tools.hexTools;
 
 /**
@@ -30,6 +51,9 @@ public class Console extends Thread {
 
 	protected ConsolePeer peer;
 
+	// default delay before displaying an unterminated line, in ms
+	public static final int DEFAULT_LINE_IDLE = 200;
+
 	static Options options;
 	static {
 		options = new Options();
@@ -37,6 +61,14 @@ public class Console extends Thread {
 		options.addOption("l", "linemode", true, "line mode cr, lr, crlf or none (default)");
 		options.addOption("r", "raw", false, "raw mode. Console output is raw, no history nor editing facilities");
 		options.addOption("o", "output", true, "output mode : hex, ascii or raw");
+		options.addOption("m", "max-fps", true, "max number of display refreshes per second (defaults to "
+				+ JlineConsole.DEFAULT_FRAME_RATE + ", 0 to refresh on each incoming chunk)");
+		options.addOption("R", "render", true, "what to do when display can't keep up with incoming data :"
+				+ " block (default), drop or summarize, optionally followed by queue size in chunks, like summarize,128");
+		options.addOption("L", "framing", true, "display incoming data line by line, with receive time and delay since previous line :"
+				+ " cr, lf, crlf or any, optionally followed by max=length (default " + LineAssembler.DEFAULT_MAX_LENGTH
+				+ ", 0 for no limit), idle=ms to display an unterminated line after this delay (default " + DEFAULT_LINE_IDLE
+				+ ", 0 never), nostamp. Like any,max=256,idle=100");
 	}
 	static public Options getOptions() {
 		return options;
@@ -82,6 +114,10 @@ public class Console extends Thread {
 
 	protected byte displayMode = MODE_ASCII;
 
+	// hex mode keeps stream offsets between chunks
+	protected HexDumpRenderer hexRenderer = new HexDumpRenderer();
+	protected AsciiRenderer asciiRenderer = new AsciiRenderer();
+
 	public String getDisplayMode() {
 		switch (displayMode) {
 		case MODE_RAW  : return "raw";
@@ -109,11 +145,108 @@ public class Console extends Thread {
 		}
 	}
 
+	// line framing of incoming data, null if disabled
+	protected volatile LineAssembler assembler = null;
+	// delay before displaying an unterminated line, 0 to wait for its end
+	protected volatile int lineIdle = DEFAULT_LINE_IDLE;
+	protected volatile boolean lineStamps = true;
+	// guards assembler and framed buffer, used by incoming data and idle line threads
+	protected final Object framingLock = new Object();
+	protected Thread lineIdleThread = null;
+	protected long lastIncoming;
+	// reference of displayed times
+	protected final long startNanos = System.nanoTime();
+
+	// chunk tags in render queue
+	static final int CHUNK_RAW = 0;
+	static final int CHUNK_LINES = 1;
+
+	// lines of current chunk, encoded for render thread : time, delta, flags, length, bytes
+	protected ByteBuffer framed = ByteBuffer.allocate(4096);
+	static final int LINE_HEADER = 8 + 8 + 1 + 4;
+	static final byte LINE_COMPLETE = 1;
+	static final byte LINE_HIGHLIGHT = 2;
+
+	static final String HIGHLIGHT_ON = "\033[1;33m";
+	static final String HIGHLIGHT_OFF = "\033[0m";
+	// appended to lines cut because too long, or displayed before their end
+	static final String CUT_MARK = " [...]";
+
+	// patterns deciding which lines are displayed or highlighted
+	protected volatile LineFilter lineFilter = LineFilter.NONE;
+
+	// statistics
+	protected volatile long matchedLines = 0;
+	protected volatile long suppressedLines = 0;
+	protected volatile long highlightedLines = 0;
+
+	// numeric fields extraction from incoming lines, null if disabled
+	protected volatile TelemetryParser telemetry = null;
+
+	protected final LineAssembler.LineListener lineListener = new LineAssembler.LineListener() {
+		public void onLine(byte[] line, int length, long time, long delta, boolean complete) {
+			TelemetryParser parser = telemetry;
+			if (parser != null) {
+				// even lines which won't be displayed
+				parser.parse(line, 0, length);
+			}
+			byte flags = complete ? LINE_COMPLETE : 0;
+			LineFilter filter = lineFilter;
+			if (!filter.isEmpty()) {
+				int result = filter.classify(line, 0, length);
+				if ((result & LineFilter.MATCHED) != 0) {
+					matchedLines++;
+				}
+				if ((result & LineFilter.SUPPRESSED) != 0) {
+					suppressedLines++;
+					return;
+				}
+				if ((result & LineFilter.HIGHLIGHTED) != 0) {
+					highlightedLines++;
+					flags |= LINE_HIGHLIGHT;
+				}
+			}
+			if (framed.remaining() < LINE_HEADER + length) {
+				ByteBuffer larger = ByteBuffer.allocate(Math.max(framed.capacity() * 2, framed.position() + LINE_HEADER + length));
+				framed.flip();
+				larger.put(framed);
+				framed = larger;
+			}
+			framed.putLong(time);
+			framed.putLong(delta);
+			framed.put(flags);
+			framed.putInt(length);
+			framed.put(line, 0, length);
+		}
+	};
+
+	// render thread buffers
+	protected final StringBuilder lineOutput = new StringBuilder();
+	protected final CharsetDecoder rawDecoder = StandardCharsets.UTF_8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	protected CharBuffer rawChars = CharBuffer.allocate(1024);
+
 	public Console(ConsolePeer peer) throws IllegalArgumentException {
 		this(peer, null);
 	}
 
+	// incoming data are displayed from a dedicated thread, thru this queue
+	protected RenderQueue renderQueue;
+
+	public RenderQueue getRenderQueue() {
+		return renderQueue;
+	}
+
+	protected int frameRate = JlineConsole.DEFAULT_FRAME_RATE;
+
+	public int getFrameRate() {
+		return frameRate;
+	}
+
 	public Console(ConsolePeer peer, CommandLine commandLine) throws IllegalArgumentException {
+		RenderQueue.Policy renderPolicy = RenderQueue.Policy.BLOCK;
+		int renderCapacity = RenderQueue.DEFAULT_CAPACITY;
 		if (commandLine!=null) {
 			if (commandLine.hasOption('l')) {
 				switch(commandLine.getOptionValue('l')) {
@@ -152,8 +285,44 @@ public class Console extends Thread {
 				raw = true;
 				displayMode = MODE_RAW;
 			}
+			if (commandLine.hasOption('m')) {
+				try {
+					frameRate = Integer.parseInt(commandLine.getOptionValue('m'));
+				} catch(NumberFormatException e) {
+					throw new IllegalArgumentException("bad value for 'max-fps' option");
+				}
+			}
+			if (commandLine.hasOption('L')) {
+				setFraming(commandLine.getOptionValue('L'));
+			}
+			if (commandLine.hasOption('R')) {
+				String[] render = commandLine.getOptionValue('R').split(",");
+				renderPolicy = RenderQueue.Policy.parse(render[0]);
+				if (render.length > 1) {
+					try {
+						renderCapacity = Integer.parseInt(render[1]);
+					} catch(NumberFormatException e) {
+						throw new IllegalArgumentException("bad value for 'render' option queue size");
+					}
+					if (renderCapacity <= 0) {
+						throw new IllegalArgumentException("bad value for 'render' option queue size");
+					}
+				}
+			}
 		}
 		this.peer = peer;
+		renderQueue = new RenderQueue(new RenderQueue.Renderer() {
+			public void render(byte[] data, int length, int tag) {
+				if (tag == CHUNK_LINES) {
+					displayLines(data, length);
+				} else {
+					display(data, length);
+				}
+			}
+			public void summarize(long skipped) {
+				displayString("\033[7m[... " + skipped + " bytes skipped ...]\033[0m");
+			}
+		}, renderPolicy, renderCapacity);
 	}
 
 	/**
@@ -174,6 +343,12 @@ public class Console extends Thread {
 				jline.setHistoryEnabled(true);
 				jline.setExpandEvents(false);
 				jline.setPrompt(PROMPT);
+				jline.setFrameRate(frameRate);
+			}
+		}
+		public void setFrameRate(int frameRate) {
+			if (jline != null) {
+				jline.setFrameRate(frameRate);
 			}
 		}
 		public String readLine() throws IOException {
@@ -193,54 +368,557 @@ public class Console extends Thread {
 	}
 	protected MyConsole console;
 
-	protected byte[] ackBytes = null;
-	protected boolean ackReceived = false;
+	// while a file is sent with acknowledge, first pattern is ACK, other ones are NAK
+	protected List<byte[]> ackPatterns = null;
+	protected final Object ackLock = new Object();
+	// number of ACK received since file sending started
+	protected long ackCount = 0;
+	// index of NAK pattern received, -1 if none
+	protected int nakFired = -1;
 
-	protected static boolean bytesCompare(byte[] a, byte[] b, int bFrom) {
-		for (int i=0; i<a.length; i++) {
-			if (a[i] != b[i+bFrom]) {
-				return false;
+	protected final ByteMatcher.MatchListener ackListener = new ByteMatcher.MatchListener() {
+		public void onMatch(int pattern, int position) {
+			synchronized (ackLock) {
+				if (pattern == 0) {
+					logger.debug("Found ACK");
+					ackCount++;
+				} else {
+					logger.debug("Found NAK #" + pattern);
+					nakFired = pattern;
+				}
+				ackLock.notifyAll();
+			}
+		}
+	};
+
+	// actions to run when patterns are found in incoming data
+	protected List<Trigger> triggers = new ArrayList<Trigger>();
+	// guards ackPatterns and triggers lists
+	protected final Object patternsLock = new Object();
+	protected ExecutorService triggerExecutor = null;
+
+	/**
+	 * ACK/NAK and trigger patterns compiled together, thus incoming data are
+	 * scanned once whatever number of patterns. Rebuilt each time patterns change,
+	 * new matcher resuming from bytes partially matched by previous one : an ACK
+	 * split between chunks is still found if a trigger is added meanwhile
+	 */
+	protected class IncomingPatterns implements ByteMatcher.MatchListener {
+		final ByteMatcher matcher;
+		final int acks;
+		final Trigger[] triggers;
+		// receive times of batch being scanned
+		ArrivalTimes arrivals;
+
+		IncomingPatterns(List<byte[]> acks, List<Trigger> triggers) {
+			List<byte[]> all = new ArrayList<byte[]>();
+			if (acks != null) {
+				all.addAll(acks);
+			}
+			for (Trigger trigger : triggers) {
+				all.add(trigger.getPattern());
+			}
+			matcher = new ByteMatcher(all);
+			this.acks = (acks == null) ? 0 : acks.size();
+			this.triggers = triggers.toArray(new Trigger[triggers.size()]);
+		}
+
+		public void onMatch(int pattern, int position) {
+			if (pattern < acks) {
+				ackListener.onMatch(pattern, position);
+			} else {
+				fire(triggers[pattern - acks], arrivals.timeAt(position));
 			}
 		}
-		return true;
 	}
+	protected volatile IncomingPatterns incomingPatterns = null;
+	// last patterns incoming data were scanned with, incoming data thread only
+	protected IncomingPatterns scannedPatterns = null;
+	// receive time of data given with a single time, incoming data thread only
+	protected final ArrivalTimes singleArrival = new ArrivalTimes(1);
 
-	protected static boolean findBytes(byte[] toFind, byte[] buffer, int length) {
-		if (toFind.length > length) {
-			return false;
+	protected void setAckPatterns(List<byte[]> patterns) {
+		synchronized (patternsLock) {
+			ackPatterns = patterns;
+			compilePatterns();
+		}
+	}
+
+	/**
+	 * patternsLock must be held
+	 */
+	protected void compilePatterns() {
+		if (ackPatterns == null && triggers.isEmpty()) {
+			incomingPatterns = null;
+		} else {
+			incomingPatterns = new IncomingPatterns(ackPatterns, triggers);
+		}
+	}
+
+	/**
+	 * called from incoming data thread when a trigger pattern is found
+	 * @param time receive time of chunk holding the occurrence
+	 */
+	protected void fire(final Trigger trigger, final long time) {
+		if (!trigger.occurred(time)) {
+			return;
 		}
-		for (int i = 0; i < length-toFind.length+1; i++) {
-			if (bytesCompare(toFind, buffer, i)) {
-				return true;
+		triggerExecutor.execute(new Runnable() {
+			public void run() {
+				trigger.dispatched(time);
+				logger.info("Trigger \"" + new String(trigger.getPattern()) + "\" : " + trigger.getAction());
+				if (trigger.isCommand()) {
+					handleCommand(trigger.getAction().substring(1));
+				} else {
+					peer.onOutgoingData((trigger.getAction() + lineMode).getBytes());
+				}
+			}
+		});
+	}
+
+	/**
+	 * !trigger command : "pattern" [holdoff=ms] action, off [n], or nothing to list triggers
+	 */
+	protected void triggerCommand(String args) {
+		List<String> items = splitArgs(args);
+		synchronized (patternsLock) {
+			if (items.isEmpty()) {
+				for (int i = 0; i < triggers.size(); i++) {
+					System.out.println("  #" + (i + 1) + " " + triggers.get(i));
+				}
+				if (triggers.isEmpty()) {
+					System.out.println("No trigger");
+				}
+				return;
 			}
+			if (items.get(0).equals("off")) {
+				if (items.size() == 1) {
+					triggers = new ArrayList<Trigger>();
+				} else {
+					try {
+						int index = Integer.parseInt(items.get(1)) - 1;
+						List<Trigger> remaining = new ArrayList<Trigger>(triggers);
+						remaining.remove(index);
+						triggers = remaining;
+					} catch(NumberFormatException | IndexOutOfBoundsException e) {
+						logger.error("trigger off needs a trigger number. Type !trigger to list them");
+						return;
+					}
+				}
+				compilePatterns();
+				return;
+			}
+			if (!isQuoted(items.get(0)) || items.size() < 2) {
+				logger.error("trigger command needs a quoted pattern and an action. Type !help or !? for help");
+				return;
+			}
+			// action is rest of line, as typed
+			int start = args.indexOf(items.get(0)) + items.get(0).length();
+			int holdoff = Trigger.DEFAULT_HOLDOFF;
+			if (items.get(1).startsWith("holdoff=")) {
+				try {
+					holdoff = Integer.parseInt(items.get(1).substring(8));
+				} catch(NumberFormatException e) {
+					logger.error("trigger holdoff must be an integer");
+					return;
+				}
+				start = args.indexOf(items.get(1), start) + items.get(1).length();
+			}
+			String action = args.substring(start).trim();
+			if (isQuoted(action) && splitArgs(action).size() == 1) {
+				action = unquote(action);
+			}
+			try {
+				List<Trigger> updated = new ArrayList<Trigger>(triggers);
+				updated.add(new Trigger(unquote(items.get(0)).getBytes(), action, holdoff));
+				triggers = updated;
+			} catch(IllegalArgumentException e) {
+				logger.error(e.getMessage());
+				return;
+			}
+			if (triggerExecutor == null) {
+				triggerExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "triggers");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+			compilePatterns();
+		}
+	}
+
+	public List<Trigger> getTriggers() {
+		synchronized (patternsLock) {
+			return new ArrayList<Trigger>(triggers);
 		}
-		return false;
 	}
+
 	/*
 	 * peer sends data it receives thru this method
+	 * data are checked for acknowledge, then queued for display, thus
+	 * array can be reused by caller as soon as this method returns
 	 */
 	public void onIncomingData(byte data[], int length) {
-		String toDisplay;
-		switch(displayMode) {
-		case MODE_ASCII:
-			StringBuffer sb = new StringBuffer(length);
-			for (int i = 0; i < length; i++) {
-				if (data[i] == '\r') {
-					sb.append("\\r");
-				} else if(data[i] == '\n' || (data[i] >= 32 && data[i] < 128)) {
-					sb.append((char)data[i]);
+		onIncomingData(data, length, System.nanoTime());
+	}
+
+	/**
+	 * same as above, giving when data were received
+	 * @param time receive time of first byte, System.nanoTime() reference
+	 */
+	public void onIncomingData(byte data[], int length, long time) {
+		singleArrival.clear();
+		singleArrival.add(0, time);
+		onIncomingData(data, length, singleArrival);
+	}
+
+	/**
+	 * same as above, for a batch of chunks received at different times
+	 * @param arrivals receive time of each chunk in data
+	 */
+	public void onIncomingData(byte data[], int length, ArrivalTimes arrivals) {
+		IncomingPatterns patterns = incomingPatterns;
+		if (patterns != scannedPatterns) {
+			if (patterns != null && scannedPatterns != null) {
+				patterns.matcher.resume(scannedPatterns.matcher.getPartialMatch());
+			}
+			scannedPatterns = patterns;
+		}
+		if (patterns != null) {
+			patterns.arrivals = arrivals;
+			patterns.matcher.scan(data, 0, length, patterns);
+		}
+		if (assembler == null) {
+			renderQueue.submit(data, length, CHUNK_RAW);
+			return;
+		}
+		synchronized (framingLock) {
+			LineAssembler current = assembler;
+			if (current == null) {
+				// framing was disabled meanwhile
+				renderQueue.submit(data, length, CHUNK_RAW);
+				return;
+			}
+			lastIncoming = System.nanoTime();
+			// lines of whole batch are queued together
+			for (int i = 0; i < arrivals.size(); i++) {
+				int from = arrivals.getOffset(i);
+				int to = (i + 1 < arrivals.size()) ? arrivals.getOffset(i + 1) : length;
+				current.push(data, from, to - from, arrivals.getTime(i), lineListener);
+			}
+			submitLines();
+		}
+	}
+
+	/**
+	 * queue lines assembled so far. framingLock must be held
+	 */
+	protected void submitLines() {
+		if (framed.position() != 0) {
+			renderQueue.submit(framed.array(), framed.position(), CHUNK_LINES);
+			framed.clear();
+		}
+	}
+
+	/**
+	 * set line framing of incoming data
+	 * @param spec "off", or terminator (cr, lf, crlf, any) followed by optional max=length,
+	 * idle=ms and nostamp items, comma separated
+	 */
+	public void setFraming(String spec) throws IllegalArgumentException {
+		String[] items = spec.trim().split("\\s*,\\s*");
+		if (items[0].equals("off")) {
+			setAssembler(null);
+			return;
+		}
+		LineAssembler.Terminator terminator = LineAssembler.Terminator.parse(items[0]);
+		int maxLength = LineAssembler.DEFAULT_MAX_LENGTH;
+		int idle = DEFAULT_LINE_IDLE;
+		boolean stamps = true;
+		for (int i = 1; i < items.length; i++) {
+			String item = items[i];
+			try {
+				if (item.startsWith("max=")) {
+					maxLength = Integer.parseInt(item.substring(4));
+				} else if (item.startsWith("idle=")) {
+					idle = Integer.parseInt(item.substring(5));
+				} else if (item.equals("nostamp")) {
+					stamps = false;
+				} else if (item.equals("stamp")) {
+					stamps = true;
 				} else {
-					sb.append("\033[7m[" + hexTools.toHex(data[i]) + "]\033[0m");
+					throw new IllegalArgumentException("bad framing item '" + item + "'");
+				}
+			} catch(NumberFormatException e) {
+				throw new IllegalArgumentException("bad framing item '" + item + "'");
+			}
+			if (maxLength < 0 || idle < 0) {
+				throw new IllegalArgumentException("bad framing item '" + item + "'");
+			}
+		}
+		lineIdle = idle;
+		lineStamps = stamps;
+		setAssembler(new LineAssembler(terminator, maxLength));
+	}
+
+	protected void setAssembler(LineAssembler newAssembler) {
+		synchronized (framingLock) {
+			if (assembler != null) {
+				// don't lose unterminated line
+				assembler.flush(lineListener);
+				submitLines();
+			}
+			assembler = newAssembler;
+			if (newAssembler != null && lineIdleThread == null) {
+				lineIdleThread = new Thread("line idle") {
+					public void run() {
+						lineIdleLoop();
+					}
+				};
+				lineIdleThread.setDaemon(true);
+				lineIdleThread.start();
+			}
+		}
+	}
+
+	/**
+	 * display unterminated lines once no byte came for lineIdle ms
+	 */
+	protected void lineIdleLoop() {
+		for (;;) {
+			int idle = lineIdle;
+			try {
+				Thread.sleep(idle == 0 ? DEFAULT_LINE_IDLE : Math.max(idle / 2, 1));
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (idle == 0) {
+				continue;
+			}
+			synchronized (framingLock) {
+				LineAssembler current = assembler;
+				if (current != null && current.getPendingLength() != 0
+						&& System.nanoTime() - lastIncoming >= TimeUnit.MILLISECONDS.toNanos(idle)) {
+					current.flush(lineListener);
+					submitLines();
 				}
 			}
-			toDisplay = sb.toString();
+		}
+	}
+
+	/**
+	 * @return current line framing description, "off" if disabled
+	 */
+	public String getFraming() {
+		LineAssembler current = assembler;
+		if (current == null) {
+			return "off";
+		}
+		return current.getTerminator() + ",max=" + current.getMaxLength() + ",idle=" + lineIdle
+				+ (lineStamps ? "" : ",nostamp");
+	}
+
+	public TelemetryParser getTelemetry() {
+		return telemetry;
+	}
+
+	/**
+	 * enable or disable telemetry parsing of incoming lines, enabling line framing if needed.
+	 * Statistics are kept while parsing is enabled
+	 */
+	public void setTelemetry(boolean enabled) {
+		if (!enabled) {
+			telemetry = null;
+			return;
+		}
+		if (telemetry == null) {
+			telemetry = new TelemetryParser();
+		}
+		if (assembler == null) {
+			setFraming("any");
+			logger.info("Line framing enabled : " + getFraming());
+		}
+	}
+
+	public LineFilter getLineFilter() {
+		return lineFilter;
+	}
+
+	/**
+	 * @return number of lines containing any filter pattern
+	 */
+	public long getMatchedLines() {
+		return matchedLines;
+	}
+
+	/**
+	 * @return number of lines not displayed because of filter
+	 */
+	public long getSuppressedLines() {
+		return suppressedLines;
+	}
+
+	public long getHighlightedLines() {
+		return highlightedLines;
+	}
+
+	/**
+	 * !filter, !hide and !highlight commands : add patterns of given kind,
+	 * remove them all with "off", or list them without argument
+	 */
+	protected void filterCommand(LineFilter.Kind kind, String args) {
+		List<String> patterns = splitArgs(args);
+		if (patterns.isEmpty()) {
+			for (byte[] pattern : lineFilter.getPatterns(kind)) {
+				System.out.println("  \"" + new String(pattern) + "\"");
+			}
+			System.out.println(lineFilterStatus());
+			return;
+		}
+		if (patterns.size() == 1 && patterns.get(0).equals("off")) {
+			lineFilter = lineFilter.without(kind);
+			return;
+		}
+		LineFilter filter = lineFilter;
+		for (String pattern : patterns) {
+			String text = isQuoted(pattern) ? unquote(pattern) : pattern;
+			if (text.isEmpty()) {
+				logger.error(kind + " command can't use an empty pattern");
+				return;
+			}
+			filter = filter.with(kind, text.getBytes());
+		}
+		lineFilter = filter;
+		if (assembler == null) {
+			// patterns apply to lines
+			setFraming("any");
+			logger.info("Line framing enabled : " + getFraming());
+		}
+	}
+
+	public String lineFilterStatus() {
+		LineFilter filter = lineFilter;
+		return String.format("Line filter : %d shown, %d hidden and %d highlighted pattern(s). %d lines matched, %d suppressed, %d highlighted",
+				filter.getPatterns(LineFilter.Kind.SHOW).size(), filter.getPatterns(LineFilter.Kind.HIDE).size(),
+				filter.getPatterns(LineFilter.Kind.HIGHLIGHT).size(), matchedLines, suppressedLines, highlightedLines);
+	}
+
+	/**
+	 * @return current line assembler, null if framing is off
+	 */
+	public LineAssembler getLineAssembler() {
+		return assembler;
+	}
+
+	/**
+	 * format incoming data according to display mode and output them.
+	 * called from render thread
+	 */
+	protected void display(byte data[], int length) {
+		String toDisplay;
+		switch(displayMode) {
+		case MODE_ASCII:
+			toDisplay = asciiRenderer.render(data, length);
 			break;
 		case MODE_HEX:
-			toDisplay = hexTools.toHexDump(data, length);
+			toDisplay = hexRenderer.render(data, length);
 			break;
 		default:
 			toDisplay = new String(data, 0, length);
 		}
+		if (toDisplay.length() != 0) {
+			displayString(toDisplay);
+		}
+	}
+
+	/**
+	 * format lines assembled by onIncomingData and output them, each one
+	 * preceded by its receive time and delay since previous line.
+	 * called from render thread
+	 */
+	protected void displayLines(byte data[], int length) {
+		StringBuilder out = lineOutput;
+		out.setLength(0);
+		ByteBuffer lines = ByteBuffer.wrap(data, 0, length);
+		while (lines.remaining() >= LINE_HEADER) {
+			long time = lines.getLong();
+			long delta = lines.getLong();
+			byte flags = lines.get();
+			int count = lines.getInt();
+			int from = lines.position();
+			lines.position(from + count);
+
+			if (out.length() != 0) {
+				out.append('\n');
+			}
+			if (lineStamps) {
+				out.append('[');
+				appendSeconds(out, time - startNanos);
+				out.append(" +");
+				appendSeconds(out, delta);
+				out.append("] ");
+			}
+			boolean highlight = (flags & LINE_HIGHLIGHT) != 0;
+			if (highlight) {
+				out.append(HIGHLIGHT_ON);
+			}
+			switch(displayMode) {
+			case MODE_ASCII:
+				asciiRenderer.render(data, from, count, out);
+				break;
+			case MODE_HEX:
+				HexDumpRenderer.appendHex(data, from, count, out);
+				break;
+			default:
+				lines.position(from).limit(from + count);
+				appendDecoded(out, lines);
+				lines.limit(length);
+			}
+			if (highlight) {
+				out.append(HIGHLIGHT_OFF);
+			}
+			if ((flags & LINE_COMPLETE) == 0) {
+				out.append(CUT_MARK);
+			}
+		}
+		if (raw) {
+			// raw console doesn't add line feeds between chunks
+			out.append('\n');
+		}
+		displayString(out.toString());
+	}
+
+	/**
+	 * append a duration in seconds, with µs precision, without intermediate string
+	 */
+	protected static void appendSeconds(StringBuilder out, long nanos) {
+		long micros = nanos / 1000;
+		out.append(micros / 1000000).append('.');
+		long fraction = micros % 1000000;
+		for (long digit = 100000; digit > 1 && fraction < digit; digit /= 10) {
+			out.append('0');
+		}
+		out.append(fraction);
+	}
+
+	/**
+	 * append remaining bytes of given buffer, decoded from UTF-8
+	 */
+	protected void appendDecoded(StringBuilder out, ByteBuffer bytes) {
+		if (rawChars.capacity() < bytes.remaining()) {
+			rawChars = CharBuffer.allocate(bytes.remaining());
+		}
+		rawChars.clear();
+		rawDecoder.reset();
+		rawDecoder.decode(bytes, rawChars, true);
+		rawDecoder.flush(rawChars);
+		rawChars.flip();
+		out.append(rawChars);
+	}
+
+	protected void displayString(String toDisplay) {
 		try {
 			console.insertString(toDisplay);
 		} catch (NullPointerException e) {
@@ -248,13 +926,6 @@ public class Console extends Thread {
 		} catch (IOException e) {
 			logger.error("Couldn't display incoming data", e);
 		}
-		if (ackBytes != null && findBytes(ackBytes, data, length)) {
-			synchronized (ackBytes) {
-				logger.debug("Found ACK");
-				ackReceived = true;
-				ackBytes.notify();
-			}			
-		}
 	}
 
 	public void onIncomingData(byte data[]) {
@@ -297,6 +968,7 @@ public class Console extends Thread {
 
 		case "hex":
 			displayMode = MODE_HEX;
+			hexRenderer.reset();
 			break;
 		case "ascii":
 			displayMode = MODE_ASCII;
@@ -321,89 +993,257 @@ public class Console extends Thread {
 				if (data != null) {
 					peer.onOutgoingData(data);
 				}
+			} else if (line.startsWith("fps ")) {
+				try {
+					frameRate = Integer.parseInt(line.substring(4).trim());
+					console.setFrameRate(frameRate);
+				} catch(NumberFormatException e) {
+					logger.error("fps command needs an integer. Type !help or !? for help");
+				}
+			} else if (line.equals("framing") || line.startsWith("framing ")) {
+				if (line.length() > 8) {
+					try {
+						setFraming(line.substring(8));
+					} catch(IllegalArgumentException e) {
+						logger.error(e.getMessage());
+					}
+				}
+				System.out.println("Line framing : " + getFraming());
+			} else if (line.equals("filter") || line.startsWith("filter ")) {
+				filterCommand(LineFilter.Kind.SHOW, line.substring(6));
+			} else if (line.equals("hide") || line.startsWith("hide ")) {
+				filterCommand(LineFilter.Kind.HIDE, line.substring(4));
+			} else if (line.equals("highlight") || line.startsWith("highlight ")) {
+				filterCommand(LineFilter.Kind.HIGHLIGHT, line.substring(9));
+			} else if (line.equals("trigger") || line.startsWith("trigger ")) {
+				triggerCommand(line.substring(7));
 			} else if (line.startsWith("read ")) {
-				String[] args = line.substring(4).split("\\s+");
-				for(int i = 0; i < args.length; i++) {
-					System.out.println("'" + args[i] + "'");
+				readFile(splitArgs(line.substring(5)));
+			} else {
+				logger.warn("Unknown command " + line + ". Type !help or !? for help");
+			}
+		}
+	}
+
+	/**
+	 * split command arguments on spaces, excepted between double quotes.
+	 * quoted arguments are returned with their quotes, to be distinguished
+	 */
+	protected static List<String> splitArgs(String line) {
+		List<String> result = new ArrayList<String>();
+		int i = 0, length = line.length();
+		while (i < length) {
+			char c = line.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i++;
+				continue;
+			}
+			int start = i;
+			if (c == '"') {
+				int end = line.indexOf('"', i + 1);
+				i = (end == -1) ? length : end + 1;
+			} else {
+				while (i < length && !Character.isWhitespace(line.charAt(i))) {
+					i++;
 				}
-				// args[0] is empty as string begins with a space
-				if (args.length <= 1) {
-					logger.error("read command needs a filename. Type !help or !? for help");
+			}
+			result.add(line.substring(start, i));
+		}
+		return result;
+	}
+
+	protected static boolean isQuoted(String arg) {
+		return arg.length() >= 1 && arg.charAt(0) == '"';
+	}
+
+	protected static String unquote(String arg) {
+		return arg.substring(1, arg.endsWith("\"") && arg.length() > 1 ? arg.length() - 1 : arg.length());
+	}
+
+	/**
+	 * !read command : send a file line by line
+	 * @param args filename, then optional delay, or acknowledge pattern(s), optional timeout,
+	 * and window=n or credit=n options
+	 */
+	protected void readFile(List<String> args) {
+		logger.debug("read arguments " + args);
+		if (args.isEmpty()) {
+			logger.error("read command needs a filename. Type !help or !? for help");
+			return;
+		}
+		String filename = args.get(0);
+		int delay = 0;
+		// max number of lines waiting for their ACK
+		int window = 0;
+		// if not 0, max number of bytes waiting for their ACK
+		int credit = 0;
+		List<byte[]> patterns = new ArrayList<byte[]>();
+		for (int i = 1; i < args.size(); i++) {
+			String arg = args.get(i);
+			if (isQuoted(arg)) {
+				byte[] pattern = unquote(arg).getBytes();
+				// an empty pattern would match on every byte
+				if (pattern.length == 0) {
+					logger.error("read command can't wait for an empty " + (patterns.isEmpty() ? "ack" : "nak")
+							+ " as argument #" + (i + 1) + ". Type !help or !? for help");
 					return;
 				}
-				String filename = args[1];
-				int delay = 0;
-				int delayIndex = -1;
-				if (args.length >= 3) {
-					if (args[2].charAt(0) == '"') {
-						ackBytes = args[2].substring(1, args[2].length()-1).getBytes();
-						delay = 2000; // default timeout when ack string
-						if (args.length > 3) {
-							delayIndex = 3;
-						}
-					} else {
-						delayIndex = 2;
-					}
-				}
-				if (delayIndex != -1) {
-					try {
-						delay = Integer.parseInt(args[delayIndex]);
-					} catch(NumberFormatException e) {
-						logger.error("read command needs a integer as argument #" + delayIndex + ". Type !help or !? for help");
-					}
+				patterns.add(pattern);
+				delay = 2000; // default timeout when ack string
+				continue;
+			}
+			try {
+				if (arg.startsWith("window=")) {
+					window = Integer.parseInt(arg.substring(7));
+				} else if (arg.startsWith("credit=")) {
+					credit = Integer.parseInt(arg.substring(7));
+				} else {
+					delay = Integer.parseInt(arg);
 				}
-				try {
-					BufferedReader inFile = new BufferedReader(new FileReader(filename));
-					logger.debug("Sending '" + filename + "'");
-					if (ackBytes != null) {
-						logger.debug("   with ack '" + new String(ackBytes) + "'");
-					}
-					if (delay != 0) {
-						logger.debug("   with delay " + delay);
-					}
-					String fileline;
-					for(;;) {
-						fileline = inFile.readLine();
-						if (fileline == null) {
-							break;
-						}
-						logger.debug("Sending line '" + fileline + "'");
-						peer.onOutgoingData(fileline.getBytes());
-						peer.onOutgoingData(lineMode.getBytes());
-						if (ackBytes != null) {
-							synchronized (ackBytes) {
-								try {
-									logger.debug("Waiting ACK");
-									ackBytes.wait(delay);
-									if (!ackReceived) {
-										logger.error("ack not received, file read aborted");
-										break;
-									}
-									ackReceived = false;
-								} catch (InterruptedException e) {}								
+			} catch(NumberFormatException e) {
+				logger.error("read command needs a integer as argument #" + (i + 1) + ". Type !help or !? for help");
+				return;
+			}
+		}
+		if (window < 0 || credit < 0) {
+			logger.error("read command window and credit must be positive. Type !help or !? for help");
+			return;
+		}
+		if (patterns.isEmpty() && (window != 0 || credit != 0)) {
+			logger.error("read command window and credit options need an ack string. Type !help or !? for help");
+			return;
+		}
+		if (window == 0) {
+			// default to one line at once, or as many as credit allows
+			window = (credit == 0) ? 1 : Integer.MAX_VALUE;
+		}
+		boolean acknowledged = !patterns.isEmpty();
+
+		BufferedReader inFile;
+		try {
+			inFile = new BufferedReader(new FileReader(filename));
+		} catch (FileNotFoundException e) {
+			logger.error("read command can't open file " + filename + ". Type !help or !? for help");
+			return;
+		}
+		logger.debug("Sending '" + filename + "'");
+		if (acknowledged) {
+			logger.debug("   with ack '" + new String(patterns.get(0)) + "'");
+			for (int i = 1; i < patterns.size(); i++) {
+				logger.debug("   with nak '" + new String(patterns.get(i)) + "'");
+			}
+			logger.debug("   with window " + window + (credit != 0 ? " and credit " + credit : ""));
+		}
+		if (delay != 0) {
+			logger.debug("   with delay " + delay);
+		}
+
+		// lengths of lines sent but not acknowledged yet
+		ArrayDeque<Integer> inFlight = new ArrayDeque<Integer>();
+		long lines = 0, bytes = 0;
+		long start = System.nanoTime();
+		boolean completed = false;
+		synchronized (ackLock) {
+			ackCount = 0;
+			nakFired = -1;
+		}
+		if (acknowledged) {
+			setAckPatterns(patterns);
+		}
+		try {
+			long acked = 0;
+			String fileline;
+			for(;;) {
+				fileline = inFile.readLine();
+				byte[] toSend = (fileline == null) ? null : (fileline + lineMode).getBytes();
+				if (acknowledged) {
+					// wait for room in window, or for all ACKs at end of file
+					synchronized (ackLock) {
+						long deadline = System.currentTimeMillis() + delay;
+						for (;;) {
+							if (nakFired != -1) {
+								logger.error("nak '" + new String(patterns.get(nakFired)) + "' received, file read aborted");
+								return;
+							}
+							if (ackCount > acked) {
+								// each ACK frees oldest line
+								while (ackCount > acked && !inFlight.isEmpty()) {
+									inFlight.removeFirst();
+									acked++;
+								}
+								acked = ackCount;
+								deadline = System.currentTimeMillis() + delay;
+							}
+							if (toSend == null ? inFlight.isEmpty() : hasRoom(inFlight, toSend.length, window, credit)) {
+								break;
+							}
+							long remaining = deadline - System.currentTimeMillis();
+							if (remaining <= 0) {
+								logger.error("ack not received, file read aborted");
+								return;
 							}
-						} else if (delay != 0) {
 							try {
-								Thread.sleep(delay);
-							} catch (InterruptedException e) {}
+								logger.debug("Waiting ACK");
+								ackLock.wait(remaining);
+							} catch (InterruptedException e) {
+								return;
+							}
 						}
 					}
-					inFile.close();
-				} catch (FileNotFoundException e) {
-					logger.error("read command can't open file " + filename + ". Type !help or !? for help");
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					logger.error("read command failed to close file", e);
-				} finally {
-					delay = 0;
-					ackBytes = null;
 				}
-			} else {
-				logger.warn("Unknown command " + line + ". Type !help or !? for help");
+				if (toSend == null) {
+					break;
+				}
+				logger.debug("Sending line '" + fileline + "'");
+				peer.onOutgoingData(toSend);
+				inFlight.addLast(toSend.length);
+				lines++;
+				bytes += toSend.length;
+				if (!acknowledged && delay != 0) {
+					try {
+						Thread.sleep(delay);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
 			}
+			completed = true;
+		} catch (IOException e) {
+			logger.error("read command failed to read file", e);
+		} finally {
+			setAckPatterns(null);
+			try {
+				inFile.close();
+			} catch (IOException e) {
+				logger.error("read command failed to close file", e);
+			}
+			double elapsed = Math.max(System.nanoTime() - start, 1) / 1e9;
+			logger.info(String.format("%s %d lines, %d bytes in %.3f s : %.1f lines/s, %.0f bytes/s",
+					completed ? "Sent" : "Aborted after", lines, bytes, elapsed, lines / elapsed, bytes / elapsed));
 		}
 	}
 
+	/**
+	 * @return true if a line of given length may be sent, according to lines already waiting for ACK
+	 */
+	protected static boolean hasRoom(ArrayDeque<Integer> inFlight, int length, int window, int credit) {
+		if (inFlight.isEmpty()) {
+			// a line larger than credit is sent alone
+			return true;
+		}
+		if (inFlight.size() >= window) {
+			return false;
+		}
+		if (credit != 0) {
+			int pending = 0;
+			for (int l : inFlight) {
+				pending += l;
+			}
+			return pending + length <= credit;
+		}
+		return true;
+	}
+
 	/**
 	 * convert a string to a byte array.
 	 * string must contains a list of hex values, with optional spaces and ascii sections
@@ -549,15 +1389,35 @@ public class Console extends Thread {
 				+ "  !exit (or Ctrl-D) : exit console program.\n"
 				+ "  ! : resend last sending buffer, including its end of line characters (even if line mode has been modified).\n"
 				+ "  !hex : incoming bytes are displayed in hex, in same format than hexdump -C.\n"
+				+ "    Offsets restart from 0 each time this command is entered, repeated lines are replaced by '*'.\n"
 				+ "  !ascii : printable characters are displayed raw, other ones are displayed in [hh] format (default mode).\n"
 				+ "  !raw : all incomming bytes are displayed raw (default mode if -raw command line option was set).\n"
+				+ "  !fps n : refresh display at most n times per second, 0 to refresh on each incoming chunk.\n"
+				+ "  !framing [ off | cr|lf|crlf|any [,max=length] [,idle=ms] [,nostamp] ] : display incoming data line by line,\n"
+				+ "    each line preceded by its receive time and delay since previous line (like -L option).\n"
+				+ "    Lines longer than max are cut, unterminated ones are displayed after idle ms without incoming byte,\n"
+				+ "    both followed by" + CUT_MARK + ".\n"
+				+ "  !filter \"pattern\" ... : display only lines containing one of the patterns.\n"
+				+ "  !hide \"pattern\" ... : don't display lines containing one of the patterns.\n"
+				+ "  !highlight \"pattern\" ... : highlight lines containing one of the patterns.\n"
+				+ "    These commands enable line framing if needed. 'off' removes all patterns of the command,\n"
+				+ "    no argument lists them, with counters of matched and suppressed lines.\n"
+				+ "  !trigger \"pattern\" [holdoff=ms] action : when pattern is received, run action, which is a command\n"
+				+ "    if it begins with '!' (like !record stop), else text to send followed by current end of line.\n"
+				+ "    A trigger doesn't fire again before holdoff ms (defaults to " + Trigger.DEFAULT_HOLDOFF + ").\n"
+				+ "    Without argument, lists triggers with their latency from byte arrival to dispatch. !trigger off [n] removes them, or #n.\n"
 				+ "  !cr, !lf, !crlf, !none : set 'end of line' mode, respectivly to '\\r', '\\n', '\\r\\n', nothing.\n"
 				+ "  !x : rest of input line is interpreted in a intuitive (?) way mixing hex values and raw text.\n"
 				+ "    Example : 0 123456 7 8 9ab 'ab c' 0123  becames hex bytes [ 00 12 34 56 07 08 9a 0b 61 62 20 63 01 23 ].\n"
 				+ "    Caution : this not does NOT append end of line characters, whatever current line mode.\n"
-				+ "  !read filepath [ delay | \"ack\" [ timeout ] ] : read filepath and send it to peer line by line.\n"
+				+ "  !read filepath [ delay | \"ack\" [ \"nak\" ... ] [ timeout ] ] : read filepath and send it to peer line by line.\n"
 				+ "    Current linefeed mode is sent after each line.\n"
 				+ "    If specified, waits to receive back 'ack' string after each line, or cancel if timeout expires (defaults to 2000ms).\n"
+				+ "    Following quoted strings are 'nak' ones : receiving one of them cancels too.\n"
+				+ "    Quoted strings may contain spaces, and may be split between several incoming chunks.\n"
+				+ "    With ack, window=n lets up to n lines wait for their ack, each ack freeing oldest one,\n"
+				+ "    and credit=n limits bytes waiting for their ack to n (like GRBL 'character counting').\n"
+				+ "    Timeout then applies to delay between two acks. Throughput is displayed at end.\n"
 				+ "    Pauses 'delay' ms between lines, if specified";
 		System.out.println(help);
 	}
@@ -0,0 +1,88 @@
+package pif.arduino.tests;
+
+import java.util.Random;
+
+import pif.arduino.tools.AsciiRenderer;
+import pif.arduino.tools.hexTools;
+
+/**
+ * Compare cost per MB of former ascii display rendering (StringBuffer and
+ * string concatenation per escaped byte) with AsciiRenderer, on text and
+ * binary data, by chunks of 1KB like BufferedSerial sends them.
+ */
+public class AsciiRenderBench {
+	static final int CHUNK = 1024;
+	static final int SIZE = 16 * 1024 * 1024;
+
+	// copy of former Console.onIncomingData ascii branch
+	static String oldRender(byte data[], int length) {
+		StringBuffer sb = new StringBuffer(length);
+		for (int i = 0; i < length; i++) {
+			if (data[i] == '\r') {
+				sb.append("\\r");
+			} else if(data[i] == '\n' || (data[i] >= 32 && data[i] < 128)) {
+				sb.append((char)data[i]);
+			} else {
+				sb.append("\033[7m[" + hexTools.toHex(data[i]) + "]\033[0m");
+			}
+		}
+		return sb.toString();
+	}
+
+	interface Renderer {
+		String render(byte[] data, int length);
+	}
+
+	static long run(Renderer renderer, byte[][] chunks) {
+		long sink = 0;
+		long start = System.nanoTime();
+		for (int pass = 0; pass < SIZE / (CHUNK * chunks.length); pass++) {
+			for (byte[] chunk : chunks) {
+				sink += renderer.render(chunk, chunk.length).length();
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		if (sink == 42) {
+			System.out.println();
+		}
+		return elapsed;
+	}
+
+	static void bench(String title, byte[][] chunks) {
+		final AsciiRenderer newRenderer = new AsciiRenderer();
+		Renderer oldOne = new Renderer() {
+			public String render(byte[] data, int length) {
+				return oldRender(data, length);
+			}
+		};
+		Renderer newOne = new Renderer() {
+			public String render(byte[] data, int length) {
+				return newRenderer.render(data, length);
+			}
+		};
+		// warm up
+		run(oldOne, chunks);
+		run(newOne, chunks);
+
+		double mb = SIZE / (1024.0 * 1024.0);
+		double oldCost = run(oldOne, chunks) / 1e6 / mb;
+		double newCost = run(newOne, chunks) / 1e6 / mb;
+		System.out.println(String.format("%-8s old %8.2f ms/MB   new %8.2f ms/MB   speedup x%.1f",
+				title, oldCost, newCost, oldCost / newCost));
+	}
+
+	public static void main(String[] args) {
+		Random random = new Random(0);
+		byte[][] text = new byte[64][CHUNK];
+		byte[][] binary = new byte[64][CHUNK];
+		String sample = "temperature=21.5 humidity=40\r\n";
+		for (int c = 0; c < 64; c++) {
+			for (int i = 0; i < CHUNK; i++) {
+				text[c][i] = (byte)sample.charAt((c * CHUNK + i) % sample.length());
+			}
+			random.nextBytes(binary[c]);
+		}
+		bench("text", text);
+		bench("binary", binary);
+	}
+}
@@ -1,27 +1,21 @@
 package pif.arduino.tests;
 
 import java.io.IOException;
+import java.util.Arrays;
 
-import pif.arduino.tools.OutputRenderer;
+import pif.arduino.tools.ProgramLauncher;
 
+/**
+ * launch a command, ls by default, with its stdout in green and stderr in red
+ */
 public class LaunchCommand {
 
 	// TODO handle pwd
 	public static void main(String[] args) throws IOException {
-
-		Process p = Runtime.getRuntime().exec("ls -l -a /DATA /root");
-		OutputRenderer out = new OutputRenderer(p.getInputStream(), System.out, "\033[32m", "\033[0m\n");
-		OutputRenderer err = new OutputRenderer(p.getErrorStream(), System.out, "\033[91m", "\033[0m\n");
-
-		while(p.isAlive()) {
-			out.forward();
-			err.forward();
-		}
-		out.forward();
-		out.flush();
-		err.forward();
-		err.flush();
-		System.out.println("Exit status : " + p.exitValue());
+		ProgramLauncher launcher = new ProgramLauncher(args.length != 0 ? Arrays.asList(args)
+				: Arrays.asList("ls", "-l", "-a", "/DATA", "/root"));
+		int status = launcher.run(System.out);
+		System.out.println("Exit status : " + status);
 	}
 
 }
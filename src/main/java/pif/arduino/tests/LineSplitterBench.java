@@ -0,0 +1,116 @@
+package pif.arduino.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import pif.arduino.tools.LineDecorator;
+import pif.arduino.tools.LineSplitter;
+
+/**
+ * Measure line splitting throughput on compiler like output, and check
+ * lines come out intact whatever way reads split them.
+ *
+ * usage : LineSplitterBench [ size in MB ]
+ */
+public class LineSplitterBench {
+	static final String[] LINES = {
+		"/home/user/Arduino/sketch/sketch.ino: In function 'void loop()':",
+		"/home/user/Arduino/sketch/sketch.ino:42:13: warning: unused variable 'value' [-Wunused-variable]",
+		"     int value = analogRead(A0);",
+		"             ^~~~~",
+		"avr-g++ -c -g -Os -w -std=gnu++11 -fpermissive -fno-exceptions -ffunction-sections -fdata-sections"
+			+ " -fno-threadsafe-statics -MMD -flto -mmcu=atmega328p -DF_CPU=16000000L -DARDUINO=10813"
+			+ " -DARDUINO_AVR_UNO -DARDUINO_ARCH_AVR -I/usr/share/arduino/hardware/arduino/avr/cores/arduino"
+			+ " -I/usr/share/arduino/hardware/arduino/avr/variants/standard /tmp/build/sketch/sketch.ino.cpp"
+			+ " -o /tmp/build/sketch/sketch.ino.cpp.o",
+		"",
+		"Sketch uses 4242 bytes (13%) of program storage space. Maximum is 32256 bytes.",
+	};
+	static final String[] TERMINATORS = { "\n", "\r\n", "\r" };
+
+	/**
+	 * returns at most a random number of bytes per read
+	 */
+	static class ChoppyInput extends InputStream {
+		final InputStream input;
+		final Random random = new Random(2);
+
+		ChoppyInput(InputStream input) {
+			this.input = input;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return input.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return input.read(b, off, Math.min(len, 1 + random.nextInt(300)));
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int size = (args.length > 0 ? Integer.parseInt(args[0]) : 16) << 20;
+		Random random = new Random(1);
+
+		ByteArrayOutputStream input = new ByteArrayOutputStream(size + 1024);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream(size + 1024);
+		int lines = 0;
+		while (input.size() < size) {
+			String line = LINES[random.nextInt(LINES.length)];
+			if (random.nextInt(1000) == 0) {
+				// a few very long lines
+				char[] fill = new char[20000 + random.nextInt(50000)];
+				Arrays.fill(fill, '#');
+				line = new String(fill);
+			}
+			// an empty line ended by '\n' after a '\r' would read as "\r\n"
+			String terminator = line.isEmpty() ? "\r\n" : TERMINATORS[random.nextInt(TERMINATORS.length)];
+			input.write((line + terminator).getBytes());
+			expected.write(("ERR " + LineDecorator.Color.RED + line + LineDecorator.Color.RESET + "\n").getBytes());
+			lines++;
+		}
+		byte[] data = input.toByteArray();
+
+		// correctness, with reads splitting lines and "\r\n" anywhere
+		ByteArrayOutputStream output = new ByteArrayOutputStream(expected.size());
+		LineSplitter splitter = new LineSplitter(output,
+				new LineDecorator.Tag("ERR "), new LineDecorator.Color(LineDecorator.Color.RED));
+		InputStream choppy = new ChoppyInput(new ByteArrayInputStream(data));
+		while (splitter.forward(choppy)) {
+		}
+		splitter.flush();
+		System.out.println(String.format("%d lines in, %d out : %s", lines, splitter.getLines(),
+				Arrays.equals(output.toByteArray(), expected.toByteArray()) ? "OK" : "MISMATCH"));
+
+		// throughput
+		OutputStream sink = new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		};
+		for (int round = 0; round < 5; round++) {
+			splitter = new LineSplitter(sink,
+					new LineDecorator.Timestamp(), new LineDecorator.Color(LineDecorator.Color.GREEN));
+			InputStream in = new ByteArrayInputStream(data);
+			long start = System.nanoTime();
+			while (splitter.forward(in)) {
+			}
+			splitter.flush();
+			double elapsed = (System.nanoTime() - start) / 1e9;
+			System.out.println(String.format("%.1f MB, %d lines in %.3f s : %.1f MB/s, %.0f lines/s",
+					data.length / 1048576.0, splitter.getLines(), elapsed,
+					data.length / 1048576.0 / elapsed, splitter.getLines() / elapsed));
+		}
+	}
+}
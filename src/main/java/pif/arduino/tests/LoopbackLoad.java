@@ -0,0 +1,88 @@
+package pif.arduino.tests;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import org.apache.commons.cli.BasicParser;
+
+import pif.arduino.Console;
+import pif.arduino.tools.BufferedSerial;
+import pif.arduino.tools.FlushPolicy;
+import pif.arduino.tools.LoopbackTransport;
+import pif.arduino.tools.RenderQueue;
+
+/**
+ * Load test of whole receive path (transport, BufferedSerial, Console render queue)
+ * without any board : a simulated device streams text lines thru an in memory
+ * loopback at given bandwidth.
+ *
+ * usage : LoopbackLoad [ megabytes [ bandwidth in bytes/s [ flush policy ] ] ]
+ * Display is sent to a null stream, thus only pipeline cost is measured.
+ */
+public class LoopbackLoad implements Console.ConsolePeer {
+	public void onOutgoingData(byte data[]) {
+	}
+	public boolean onCommand(String command) {
+		return false;
+	}
+	public void onExit(int status) {
+	}
+
+	static class Streamer extends LoopbackTransport.Peer {
+		long total;
+
+		Streamer(long total) {
+			this.total = total;
+		}
+
+		@Override
+		public void onOpen() {
+			byte[] line = "sensor=123.45 state=RUNNING counter=000000\r\n".getBytes();
+			for (long sent = 0; sent < total; sent += line.length) {
+				send(line, 0, (int)Math.min(line.length, total - sent));
+			}
+		}
+
+		@Override
+		public void onData(byte[] data, int offset, int length) {
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		long total = (args.length > 0 ? Long.parseLong(args[0]) : 8) * 1024 * 1024;
+		int bandwidth = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+		FlushPolicy policy = args.length > 2 ? FlushPolicy.parse(args[2]) : FlushPolicy.DEFAULT;
+
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+
+		Console console = new Console(new LoopbackLoad(),
+				new BasicParser().parse(Console.getOptions(), new String[] { "-r" }));
+		console.setDaemon(true);
+		console.start();
+		// let console initialize its output
+		Thread.sleep(200);
+
+		long start = System.nanoTime();
+		BufferedSerial serial = new BufferedSerial(console,
+				new LoopbackTransport(bandwidth, 0, 0, new Streamer(total)), policy);
+		RenderQueue render = console.getRenderQueue();
+		while (render.getRenderedBytes() + render.getDroppedBytes() < total) {
+			Thread.sleep(10);
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		serial.dispose();
+
+		out.println(String.format("%d bytes in %.3f s : %.2f MB/s (bandwidth %s, flush %s)",
+				total, elapsed, total / elapsed / (1024 * 1024),
+				bandwidth == 0 ? "unlimited" : bandwidth + " bytes/s", policy));
+		out.println(String.format("%d flushes, max buffer occupancy %d, render queue max depth %d, %d bytes dropped",
+				serial.getFlushCount(), serial.getMaxOccupancy(), render.getMaxDepth(), render.getDroppedBytes()));
+		System.exit(0);
+	}
+}
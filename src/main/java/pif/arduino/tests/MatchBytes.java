@@ -0,0 +1,88 @@
+package pif.arduino.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import pif.arduino.tools.ByteMatcher;
+
+public class MatchBytes {
+	static List<Integer> found = new ArrayList<Integer>();
+
+	static ByteMatcher.MatchListener listener = new ByteMatcher.MatchListener() {
+		public void onMatch(int pattern, int position) {
+			found.add(pattern);
+		}
+	};
+
+	/**
+	 * scan chunks one after the other with a matcher on given patterns
+	 * and check which patterns were found, in order
+	 */
+	static void test(String[] patterns, String[] chunks, Integer... expected) {
+		byte[][] p = new byte[patterns.length][];
+		for (int i = 0; i < patterns.length; i++) {
+			p[i] = patterns[i].getBytes();
+		}
+		ByteMatcher matcher = new ByteMatcher(p);
+		found.clear();
+		for (String chunk : chunks) {
+			byte[] data = chunk.getBytes();
+			matcher.scan(data, 0, data.length, listener);
+		}
+		if (!found.equals(Arrays.asList(expected))) {
+			System.out.println("Error :");
+			System.out.println("  patterns : " + Arrays.toString(patterns));
+			System.out.println("  chunks   : " + Arrays.toString(chunks));
+			System.out.println("  expected : " + Arrays.toString(expected));
+			System.out.println("  result   : " + found);
+		} else {
+			System.out.println("OK for   : " + Arrays.toString(patterns) + " in " + Arrays.toString(chunks));
+		}
+	}
+
+	/**
+	 * scan first chunk with a matcher, then go on with another one on other patterns,
+	 * as console does when patterns change
+	 */
+	static void testResume(String[] before, String first, String[] after, String second, Integer... expected) {
+		ByteMatcher previous = new ByteMatcher(bytes(before));
+		byte[] data = first.getBytes();
+		previous.scan(data, 0, data.length, null);
+		ByteMatcher matcher = new ByteMatcher(bytes(after));
+		matcher.resume(previous.getPartialMatch());
+		found.clear();
+		data = second.getBytes();
+		matcher.scan(data, 0, data.length, listener);
+		if (!found.equals(Arrays.asList(expected))) {
+			System.out.println("Error :");
+			System.out.println("  resume   : " + Arrays.toString(before) + " then " + Arrays.toString(after));
+			System.out.println("  expected : " + Arrays.toString(expected));
+			System.out.println("  result   : " + found);
+		} else {
+			System.out.println("OK for   : '" + first + "' then '" + second + "' resumed with " + Arrays.toString(after));
+		}
+	}
+
+	static byte[][] bytes(String[] patterns) {
+		byte[][] result = new byte[patterns.length][];
+		for (int i = 0; i < patterns.length; i++) {
+			result[i] = patterns[i].getBytes();
+		}
+		return result;
+	}
+
+	static public void main(String args[]) {
+		test(new String[] { "OK" }, new String[] { "bla OK bla" }, 0);
+		test(new String[] { "OK" }, new String[] { "bla O", "K bla" }, 0);
+		test(new String[] { "OK" }, new String[] { "O", "", "K" }, 0);
+		test(new String[] { "OK", "ERR" }, new String[] { "E", "RR OK" }, 1, 0);
+		test(new String[] { "abcd", "bc", "c" }, new String[] { "xabcd" }, 1, 2, 0);
+		test(new String[] { "aab" }, new String[] { "aaa", "ab" }, 0);
+		test(new String[] { "ok" }, new String[] { "OK" });
+		testResume(new String[] { "ACK" }, "xxAC", new String[] { "ACK", "boot" }, "K", 0);
+		testResume(new String[] { "ACK" }, "xxA", new String[] { "ACK", "xA" }, "CK", 0);
+		testResume(new String[] { "ACK" }, "ACK", new String[] { "ACK" }, "", new Integer[0]);
+		testResume(new String[] { "ACK", "boot" }, "bo", new String[] { "ACK" }, "ot ACK", 0);
+	}
+}
@@ -0,0 +1,102 @@
+package pif.arduino.tests;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import pif.arduino.tools.IntelHex;
+import pif.arduino.tools.LoopbackTransport;
+import pif.arduino.tools.MySerial;
+import pif.arduino.tools.Stk500Uploader;
+
+/**
+ * Upload images with {@link Stk500Uploader} to a simulated Optiboot board
+ * ({@link OptibootPeer}), and check flash content : full upload pipelined or
+ * not, upload of a slightly changed image skipping unchanged pages, and
+ * upload against a stale previous image, repaired by verify.
+ *
+ * usage : NativeUpload [ image size in KB [ bandwidth in bytes/s [ latency in ms ] ] ]
+ * Defaults simulate a 115200 bauds USB serial adapter.
+ */
+public class NativeUpload {
+	/**
+	 * @return image as Intel HEX text, 16 bytes per record
+	 */
+	static String toHex(byte[] image) {
+		StringBuilder result = new StringBuilder();
+		for (int address = 0; address < image.length; address += 16) {
+			int count = Math.min(16, image.length - address);
+			int sum = count + (address >> 8) + address;
+			result.append(String.format(":%02X%04X00", count, address & 0xFFFF));
+			for (int i = address; i < address + count; i++) {
+				result.append(String.format("%02X", image[i] & 0xFF));
+				sum += image[i];
+			}
+			result.append(String.format("%02X\n", -sum & 0xFF));
+		}
+		result.append(":00000001FF\n");
+		return result.toString();
+	}
+
+	static void upload(String title, Stk500Uploader uploader, IntelHex image, OptibootPeer board) throws Exception {
+		int before = board.getPagesWritten();
+		long start = System.currentTimeMillis();
+		uploader.upload(image);
+		long elapsed = System.currentTimeMillis() - start;
+		boolean same = Arrays.equals(Arrays.copyOf(board.getFlash(), image.getLength()),
+				Arrays.copyOf(image.getData(), image.getLength()));
+		System.out.println(String.format("%-24s %s in %d ms : %s", title, same ? "OK" : "FLASH MISMATCH", elapsed, uploader));
+		System.out.println(String.format("%-24s %d pages written on board, %d overruns, %d sync errors",
+				"", board.getPagesWritten() - before, board.getOverruns(), board.getSyncErrors()));
+	}
+
+	public static void main(String[] args) throws Exception {
+		int size = (args.length > 0 ? Integer.parseInt(args[0]) : 24) * 1024;
+		int bandwidth = args.length > 1 ? Integer.parseInt(args[1]) : 11520;
+		int latency = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+		Random random = new Random(1);
+
+		byte[] original = new byte[size];
+		random.nextBytes(original);
+		IntelHex image = IntelHex.parse(toHex(original));
+		System.out.println(String.format("Parsed %d bytes image : %s", image.getLength(),
+				Arrays.equals(Arrays.copyOf(image.getData(), size), original) ? "OK" : "MISMATCH"));
+
+		OptibootPeer board = new OptibootPeer();
+		MySerial serial = new MySerial(new LoopbackTransport(bandwidth, latency, 0, board)) {
+			@Override
+			protected void message(char[] chars, int length) {
+				System.out.print("  board says : " + new String(chars, 0, length));
+			}
+		};
+		Stk500Uploader uploader = new Stk500Uploader(serial);
+
+		uploader.setPipelined(false);
+		upload("full, not pipelined", uploader, image, board);
+		Thread.sleep(100);
+
+		uploader.setPipelined(true);
+		upload("full, pipelined", uploader, image, board);
+		Thread.sleep(100);
+
+		// a small change, like a constant in sketch
+		byte[] changed = original.clone();
+		changed[size / 2] ^= 0x55;
+		changed[size / 3] ^= 0x55;
+		uploader.setPrevious(original);
+		IntelHex changedImage = IntelHex.parse(toHex(changed));
+		upload("changed, skip unchanged", uploader, changedImage, board);
+		Thread.sleep(100);
+
+		// board flashed by someone else since : cache is stale
+		byte[] other = changed.clone();
+		other[10] ^= 0x01;
+		uploader.setPrevious(changed);
+		IntelHex otherImage = IntelHex.parse(toHex(other));
+		board.getFlash()[size - 1] ^= 0x01;
+		upload("stale previous image", uploader, otherImage, board);
+		Thread.sleep(100);
+
+		serial.dispose();
+		System.exit(0);
+	}
+}
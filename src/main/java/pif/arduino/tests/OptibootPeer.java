@@ -0,0 +1,277 @@
+package pif.arduino.tests;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import pif.arduino.tools.LoopbackTransport;
+
+/**
+ * Simulated ATmega328P board running Optiboot, for {@link LoopbackTransport}.
+ *
+ * A DTR assertion resets board into bootloader, which answers STK500v1
+ * commands until it's left or stays idle for one second, then sketch runs.
+ * Like real chip, a page write keeps bootloader busy for 4.5 ms, during
+ * which UART can't hold more than 3 incoming bytes : next ones are lost and
+ * counted as overruns. A bad command terminator makes bootloader start sketch.
+ * @author pif
+ */
+public class OptibootPeer extends LoopbackTransport.Peer {
+	public static final int FLASH_SIZE = 32 * 1024;
+	public static final byte[] SIGNATURE = { 0x1e, (byte)0x95, 0x0f };
+	public static final byte[] SKETCH_BANNER = "sketch running\r\n".getBytes();
+
+	static final long WRITE_TIME = 4500;
+	static final int UART_FIFO = 3;
+	static final int BOOT_TIMEOUT = 1000;
+
+	static final byte STK_OK = 0x10;
+	static final byte STK_INSYNC = 0x14;
+	static final byte CRC_EOP = 0x20;
+
+	protected final byte[] flash = new byte[FLASH_SIZE];
+	// simulated cpu, runs everything in order
+	protected final ScheduledExecutorService cpu = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "optiboot");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	protected boolean dtr = false;
+	protected volatile boolean bootloader = false;
+	protected long lastActivity;
+	protected byte[] command = new byte[512];
+	protected int length = 0;
+	protected int address = 0;
+	protected boolean busy = false;
+	protected byte[] fifo = new byte[UART_FIFO];
+	protected int fifoLength = 0;
+
+	// statistics
+	protected volatile int resets = 0;
+	protected volatile int pagesWritten = 0;
+	protected volatile int overruns = 0;
+	protected volatile int syncErrors = 0;
+
+	public OptibootPeer() {
+		Arrays.fill(flash, (byte)0xFF);
+	}
+
+	@Override
+	public void onOpen() {
+		cpu.execute(new Runnable() {
+			public void run() {
+				startSketch();
+			}
+		});
+	}
+
+	@Override
+	public synchronized void onDTR(boolean state) {
+		if (state && !dtr) {
+			cpu.execute(new Runnable() {
+				public void run() {
+					reset();
+				}
+			});
+		}
+		dtr = state;
+	}
+
+	@Override
+	public void onData(byte[] data, int offset, int length) {
+		final byte[] copy = Arrays.copyOfRange(data, offset, offset + length);
+		cpu.execute(new Runnable() {
+			public void run() {
+				receive(copy);
+			}
+		});
+	}
+
+	@Override
+	public void onClose() {
+		cpu.shutdownNow();
+	}
+
+	protected void reset() {
+		resets++;
+		bootloader = true;
+		length = 0;
+		busy = false;
+		fifoLength = 0;
+		lastActivity = System.nanoTime();
+		checkTimeout();
+	}
+
+	protected void checkTimeout() {
+		cpu.schedule(new Runnable() {
+			public void run() {
+				if (!bootloader) {
+					return;
+				}
+				if (System.nanoTime() - lastActivity >= TimeUnit.MILLISECONDS.toNanos(BOOT_TIMEOUT)) {
+					startSketch();
+				} else {
+					checkTimeout();
+				}
+			}
+		}, BOOT_TIMEOUT / 4, TimeUnit.MILLISECONDS);
+	}
+
+	protected void startSketch() {
+		bootloader = false;
+		send(SKETCH_BANNER, 0, SKETCH_BANNER.length);
+	}
+
+	protected void receive(byte[] data) {
+		if (!bootloader) {
+			// sketch ignores input
+			return;
+		}
+		lastActivity = System.nanoTime();
+		int i = 0;
+		while (i < data.length && !busy) {
+			feed(data[i++]);
+		}
+		// bytes coming while flash is written
+		for (; i < data.length; i++) {
+			if (fifoLength < UART_FIFO) {
+				fifo[fifoLength++] = data[i];
+			} else {
+				overruns++;
+			}
+		}
+	}
+
+	/**
+	 * @return expected length of command, from its first bytes
+	 */
+	protected int expectedLength() {
+		switch (command[0]) {
+		case 0x41: // get parameter
+			return 3;
+		case 0x42: // set device
+			return 22;
+		case 0x45: // set device ext
+			return 7;
+		case 0x55: // load address
+			return 4;
+		case 0x56: // universal
+			return 6;
+		case 0x64: // program page
+			return length < 3 ? Integer.MAX_VALUE : 5 + (((command[1] & 0xFF) << 8) | (command[2] & 0xFF));
+		case 0x74: // read page
+			return 5;
+		default:
+			return 2;
+		}
+	}
+
+	protected void feed(byte b) {
+		if (length == command.length) {
+			command = Arrays.copyOf(command, length * 2);
+		}
+		command[length++] = b;
+		if (length < expectedLength()) {
+			return;
+		}
+		int count = length;
+		length = 0;
+		if (command[count - 1] != CRC_EOP) {
+			// optiboot lets watchdog reset it, thus sketch starts
+			syncErrors++;
+			startSketch();
+			return;
+		}
+		switch (command[0]) {
+		case 0x41:
+			reply(new byte[] { 0x03 });
+			break;
+		case 0x55:
+			address = ((command[1] & 0xFF) | ((command[2] & 0xFF) << 8)) * 2;
+			reply(new byte[0]);
+			break;
+		case 0x56:
+			reply(new byte[] { 0 });
+			break;
+		case 0x64:
+			programPage(count - 5);
+			break;
+		case 0x74: {
+			int size = ((command[1] & 0xFF) << 8) | (command[2] & 0xFF);
+			reply(Arrays.copyOfRange(flash, address, address + size));
+			break;
+		}
+		case 0x75:
+			reply(SIGNATURE);
+			break;
+		case 0x51:
+			reply(new byte[0]);
+			// watchdog then starts sketch
+			bootloader = false;
+			cpu.schedule(new Runnable() {
+				public void run() {
+					startSketch();
+				}
+			}, 16, TimeUnit.MILLISECONDS);
+			break;
+		default:
+			reply(new byte[0]);
+		}
+	}
+
+	protected void programPage(int size) {
+		send(new byte[] { STK_INSYNC }, 0, 1);
+		System.arraycopy(command, 4, flash, address, size);
+		pagesWritten++;
+		busy = true;
+		cpu.schedule(new Runnable() {
+			public void run() {
+				busy = false;
+				send(new byte[] { STK_OK }, 0, 1);
+				byte[] pending = Arrays.copyOf(fifo, fifoLength);
+				fifoLength = 0;
+				receive(pending);
+			}
+		}, WRITE_TIME, TimeUnit.MICROSECONDS);
+	}
+
+	protected void reply(byte[] data) {
+		byte[] result = new byte[data.length + 2];
+		result[0] = STK_INSYNC;
+		System.arraycopy(data, 0, result, 1, data.length);
+		result[data.length + 1] = STK_OK;
+		send(result, 0, result.length);
+	}
+
+	/**
+	 * @return flash content, to compare with uploaded image
+	 */
+	public byte[] getFlash() {
+		return flash;
+	}
+
+	public boolean isBootloader() {
+		return bootloader;
+	}
+
+	public int getResets() {
+		return resets;
+	}
+
+	public int getPagesWritten() {
+		return pagesWritten;
+	}
+
+	public int getOverruns() {
+		return overruns;
+	}
+
+	public int getSyncErrors() {
+		return syncErrors;
+	}
+}
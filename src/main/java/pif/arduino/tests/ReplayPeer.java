@@ -0,0 +1,85 @@
+package pif.arduino.tests;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import org.apache.commons.cli.BasicParser;
+
+import pif.arduino.Console;
+import pif.arduino.tools.BufferedSerial;
+import pif.arduino.tools.FlushPolicy;
+import pif.arduino.tools.RenderQueue;
+import pif.arduino.tools.ReplayTransport;
+
+/**
+ * Replay a session recorded with ArdConsole --record thru whole receive path
+ * (BufferedSerial flush logic, Console parsing and rendering), without any board.
+ *
+ * usage : ReplayPeer capture [ speed [ flush policy [ console options ... ] ] ]
+ * speed is 1 for original timing, 10, 100 ... for faster replay, or max.
+ * Console options (output mode, line mode ...) are the ones of ArdConsole, -r being forced.
+ * At max speed display is sent to a null stream, thus only pipeline cost is
+ * measured. Rendering throughput is reported at end.
+ */
+public class ReplayPeer implements Console.ConsolePeer {
+	public void onOutgoingData(byte data[]) {
+	}
+	public boolean onCommand(String command) {
+		return false;
+	}
+	public void onExit(int status) {
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.err.println("usage : ReplayPeer capture [ speed [ flush policy [ console options ... ] ] ]");
+			System.exit(1);
+		}
+		File capture = new File(args[0]);
+		double speed = args.length > 1 ? ReplayTransport.parseSpeed(args[1]) : 0;
+		FlushPolicy policy = args.length > 2 ? FlushPolicy.parse(args[2]) : FlushPolicy.DEFAULT;
+		String[] consoleArgs = args.length > 3 ? Arrays.copyOfRange(args, 3, args.length + 1) : new String[1];
+		consoleArgs[consoleArgs.length - 1] = "-r";
+
+		PrintStream out = System.out;
+		if (speed == 0) {
+			System.setOut(new PrintStream(new OutputStream() {
+				public void write(int b) {
+				}
+				public void write(byte[] b, int off, int len) {
+				}
+			}));
+		}
+
+		Console console = new Console(new ReplayPeer(),
+				new BasicParser().parse(Console.getOptions(), consoleArgs));
+		console.setDaemon(true);
+		console.start();
+		// let console initialize its output
+		Thread.sleep(200);
+
+		long start = System.nanoTime();
+		ReplayTransport replay = new ReplayTransport(capture, speed);
+		BufferedSerial serial = new BufferedSerial(console, replay, policy);
+		RenderQueue render = console.getRenderQueue();
+		// count input bytes : with framing, rendered chunks also hold line headers
+		while (!replay.isFinished() || serial.getFlushedBytes() < replay.getReplayedBytes()) {
+			Thread.sleep(10);
+		}
+		if (!render.drain(60000)) {
+			out.println("render queue not drained after 60 s");
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		serial.dispose();
+
+		long total = replay.getReplayedBytes();
+		out.println(String.format("%d bytes in %d chunks replayed in %.3f s : %.2f MB/s (speed %s, flush %s)",
+				total, replay.getReplayedChunks(), elapsed, total / elapsed / (1024 * 1024),
+				speed == 0 ? "max" : speed, policy));
+		out.println(String.format("%d flushes, max buffer occupancy %d, render queue max depth %d, %d bytes dropped",
+				serial.getFlushCount(), serial.getMaxOccupancy(), render.getMaxDepth(), render.getDroppedBytes()));
+		System.exit(0);
+	}
+}
@@ -0,0 +1,51 @@
+package pif.arduino.tests;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import pif.arduino.tools.TelemetryParser;
+
+/**
+ * Measure telemetry parsing throughput, and compare its quantiles to exact ones.
+ *
+ * usage : TelemetryBench [ number of lines ]
+ */
+public class TelemetryBench {
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		Random random = new Random(1);
+
+		// a few distinct lines, like a sketch printing sensor values
+		byte[][] lines = new byte[1024][];
+		double[] exact = new double[count];
+		double[] temperatures = new double[lines.length];
+		for (int i = 0; i < lines.length; i++) {
+			temperatures[i] = 20 + random.nextGaussian() * 3;
+			lines[i] = String.format("temp=%.3f hum=%d,vbat:%.2f", temperatures[i],
+					40 + random.nextInt(20), 3.3 + random.nextDouble()).getBytes();
+		}
+
+		TelemetryParser parser = new TelemetryParser();
+		// warm up
+		for (int i = 0; i < 100000; i++) {
+			parser.parse(lines[i % lines.length], 0, lines[i % lines.length].length);
+		}
+		parser.reset();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			byte[] line = lines[i % lines.length];
+			parser.parse(line, 0, line.length);
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		System.out.println(parser.report());
+		System.out.println(String.format("%d lines in %.3f s : %.0f lines/s", count, elapsed, count / elapsed));
+
+		for (int i = 0; i < count; i++) {
+			exact[i] = temperatures[i % lines.length];
+		}
+		Arrays.sort(exact);
+		System.out.println(String.format("exact temp p50 %.6g, p99 %.6g",
+				exact[(int)Math.ceil(0.5 * count) - 1], exact[(int)Math.ceil(0.99 * count) - 1]));
+	}
+}
@@ -0,0 +1,69 @@
+package pif.arduino.tools;
+
+/**
+ * Receive times of the chunks merged into a batch of incoming bytes : part i
+ * of batch begins at offset i and was received at time i, up to next part.
+ *
+ * Handed along a batch, thus bytes are processed at once while lines and
+ * pattern occurrences keep the receive time of their own chunk.
+ * Arrays are allocated once : parts beyond capacity are merged into last one.
+ * Not thread safe, owned by thread filling it.
+ * @author pif
+ */
+public class ArrivalTimes {
+	protected final int[] offsets;
+	protected final long[] times;
+	protected int count = 0;
+
+	public ArrivalTimes(int capacity) {
+		offsets = new int[capacity];
+		times = new long[capacity];
+	}
+
+	public void clear() {
+		count = 0;
+	}
+
+	/**
+	 * add a part, offsets must be given in increasing order, first one being 0
+	 * @param time receive time, System.nanoTime() reference
+	 */
+	public void add(int offset, long time) {
+		if (count != 0 && offsets[count - 1] == offset) {
+			// previous part was empty
+			times[count - 1] = time;
+		} else if (count < offsets.length) {
+			offsets[count] = offset;
+			times[count] = time;
+			count++;
+		}
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public int getOffset(int part) {
+		return offsets[part];
+	}
+
+	public long getTime(int part) {
+		return times[part];
+	}
+
+	/**
+	 * @return receive time of byte at this offset in batch
+	 */
+	public long timeAt(int offset) {
+		int low = 0, high = count - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (offsets[middle] <= offset) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return times[low];
+	}
+}
@@ -0,0 +1,82 @@
+package pif.arduino.tools;
+
+/**
+ * Render bytes for ascii display mode :
+ * printable characters and '\n' are output as is, '\r' as "\r", other bytes
+ * as [hh], in reverse video.
+ *
+ * Each byte rendering comes from a precomputed table, and adjacent escaped
+ * bytes are merged into a single reverse video run.
+ * Output is built into a reusable buffer.
+ * @author pif
+ */
+public class AsciiRenderer {
+	static final String HIGHLIGHT_ON = "\033[7m";
+	static final String HIGHLIGHT_OFF = "\033[0m";
+
+	static final char[][] RENDERING = new char[256][];
+	static final boolean[] ESCAPED = new boolean[256];
+	static {
+		for (int i = 0; i < 256; i++) {
+			if (i == '\r') {
+				RENDERING[i] = "\\r".toCharArray();
+			} else if (i == '\n' || (i >= 32 && i < 128)) {
+				RENDERING[i] = new char[] { (char)i };
+			} else {
+				RENDERING[i] = new char[] { '[', HexDumpRenderer.HIGH[i], HexDumpRenderer.LOW[i], ']' };
+				ESCAPED[i] = true;
+			}
+		}
+	}
+	// worst case : each byte is escaped alone, between other ones
+	static final int MAX_CHARS_PER_BYTE = 4 + HIGHLIGHT_ON.length() + HIGHLIGHT_OFF.length();
+
+	protected char[] output = new char[1024];
+
+	public synchronized String render(byte[] data, int length) {
+		int n = render(data, 0, length);
+		return new String(output, 0, n);
+	}
+
+	/**
+	 * render data and append result to out
+	 */
+	public synchronized void render(byte[] data, int from, int length, StringBuilder out) {
+		int n = render(data, from, length);
+		out.append(output, 0, n);
+	}
+
+	/**
+	 * render into output buffer
+	 * @return number of chars written
+	 */
+	protected int render(byte[] data, int from, int length) {
+		if (output.length < length * MAX_CHARS_PER_BYTE) {
+			output = new char[length * MAX_CHARS_PER_BYTE];
+		}
+		char[] out = output;
+		int n = 0;
+		boolean highlighted = false;
+		for (int i = from; i < from + length; i++) {
+			int b = data[i] & 0xff;
+			if (ESCAPED[b] != highlighted) {
+				String toggle = highlighted ? HIGHLIGHT_OFF : HIGHLIGHT_ON;
+				toggle.getChars(0, toggle.length(), out, n);
+				n += toggle.length();
+				highlighted = !highlighted;
+			}
+			char[] r = RENDERING[b];
+			if (r.length == 1) {
+				out[n++] = r[0];
+			} else {
+				System.arraycopy(r, 0, out, n, r.length);
+				n += r.length;
+			}
+		}
+		if (highlighted) {
+			HIGHLIGHT_OFF.getChars(0, HIGHLIGHT_OFF.length(), out, n);
+			n += HIGHLIGHT_OFF.length();
+		}
+		return n;
+	}
+}
@@ -1,81 +1,281 @@
 package pif.arduino.tools;
 
 import pif.arduino.Console;
-import java.util.Timer;
-import java.util.TimerTask;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
  * have to extend Serial class to implement message() method
+ *
+ * incoming bytes are pushed by serial event thread into a ring buffer,
+ * and a dedicated flusher thread sends them to console by batches, to avoid
+ * to split packets.
+ * When a batch is flushed depends on current {@link FlushPolicy}.
+ *
+ * Arrival time of each received chunk is kept in a side ring, beside bytes,
+ * and handed to console with each batch (see {@link ArrivalTimes}), thus
+ * chunks are still displayed together while each one keeps its own time.
+ * If many more chunks than the side ring holds are waiting, the last ones
+ * share time of the latest stamped chunk.
  */
 public class BufferedSerial extends MySerial {
 	Logger logger = LogManager.getLogger();
 
 	Console console;
 
-	final static int MAX_BUFFER = 1024;
+	final static int RING_CAPACITY = 2 * FlushPolicy.MAX_SIZE;
+	// power of 2
+	final static int STAMPS = 256;
 
 	// bufferize incoming data
-	byte[] buffer;
-	int bufIndex;
+	RingBuffer ring;
+	// flusher side copy of data handed to console
+	byte[] flushBuffer;
 
-	// and send them to console after a short delay
+	// arrival times of chunks in ring : stream position of first byte, and time
+	final long[] stampPositions = new long[STAMPS];
+	final long[] stampTimes = new long[STAMPS];
+	// number of stamps written by receiver thread
+	volatile long stampHead = 0;
+	// stamp of bytes being flushed, older ones are free
+	volatile long stampTail = 0;
+	// bytes written to ring, receiver thread only
+	long received = 0;
+	// bytes read from ring, flusher thread only
+	long consumed = 0;
+	// stamps of flushed batch, flusher thread only
+	final ArrivalTimes arrivals = new ArrivalTimes(STAMPS + 1);
+
+	// and send them to console according to this policy
 	// to avoid to split packets
-	final static int FLUSH_DELAY = 100; // in milliseconds 
-	Timer flushTimer = null;
+	volatile FlushPolicy policy = FlushPolicy.DEFAULT;
 
-	class FlushTask extends TimerTask {
-		public void run() {
-			flush();
-			flushTimer.purge();
-		}
+	Thread flusher;
+	volatile boolean running;
+	// true while flusher is parked waiting for data
+	volatile boolean flusherWaiting = false;
+	// arrival time of last received chunk
+	volatile long lastReceive;
+	// arrival time of first chunk not flushed yet
+	volatile long batchStart;
+	// set by receiver thread once a line end is in ring, cleared by flusher before draining it
+	volatile boolean newlinePending = false;
+
+	// statistics
+	volatile long flushCount = 0;
+	volatile long flushedBytes = 0;
+	volatile int maxOccupancy = 0;
+
+	public BufferedSerial(Console console, String portName, int baudrate) throws MySerialException {
+		this(console, portName, baudrate, FlushPolicy.DEFAULT);
 	}
-	FlushTask pendingFlush;
-
-	protected void prepareFlush() {
-		pendingFlush = new FlushTask();
-		if(flushTimer != null) {
-			flushTimer.schedule(pendingFlush, FLUSH_DELAY);
-		} else {
-			logger.error("flushTimer is null (start up race condition ?)");
-		}
+
+	public BufferedSerial(Console console, String portName, int baudrate, FlushPolicy policy) throws MySerialException {
+		this(console, portName, baudrate, policy, FlowControl.NONE);
 	}
 
-	protected void flush() {
-		if (bufIndex != 0) {
-			console.onIncomingData(buffer, bufIndex);
-			bufIndex = 0;
-		}
+	public BufferedSerial(Console console, String portName, int baudrate, FlushPolicy policy,
+			FlowControl flowControl) throws MySerialException {
+		this(console, createTransport(portName, baudrate, flowControl), policy);
 	}
 
-	public BufferedSerial(Console console, String portName, int baudrate) throws MySerialException {
-		super(portName, baudrate);
+	public BufferedSerial(Console console, SerialTransport transport, FlushPolicy policy) throws MySerialException {
+		// open port only once ring buffer and flusher are ready
+		super(transport, false);
 		this.console = console;
-		buffer = new byte[MAX_BUFFER];
-		bufIndex = 0;
+		this.policy = policy;
+		ring = new RingBuffer(RING_CAPACITY);
+		flushBuffer = new byte[policy.getSize()];
+
+		running = true;
+		flusher = new Thread("serial flusher") {
+			public void run() {
+				flushLoop();
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.start();
 
-		flushTimer = new Timer("flush timer", true);
-		pendingFlush = null;
+		try {
+			open();
+		} catch (MySerialException e) {
+			running = false;
+			LockSupport.unpark(flusher);
+			throw e;
+		}
 	}
 
+	/**
+	 * bytes are buffered as is, without decoding : display modes handle raw bytes
+	 * and decoding would alter binary data
+	 */
 	@Override
-	protected void message(char[] chars, int length) {
-		// if flush is pending, cancel it
-		if (pendingFlush != null) {
-			pendingFlush.cancel();
-			pendingFlush = null;
+	protected void message(byte[] bytes, int offset, int length) {
+		FlushPolicy current = policy;
+		boolean newline = false;
+		if (current.isEol() && !newlinePending) {
+			for (int i = offset; i < offset + length; i++) {
+				if (bytes[i] == '\n' || bytes[i] == '\r') {
+					newline = true;
+					break;
+				}
+			}
+		}
+		long now = System.nanoTime();
+		lastReceive = now;
+		if (ring.size() == 0) {
+			batchStart = now;
 		}
-		if (bufIndex + length >= MAX_BUFFER) {
-			// will overflow => send buffered data before
-			flush();
+		long head = stampHead;
+		if (head - stampTail < STAMPS) {
+			stampPositions[(int)head & (STAMPS - 1)] = received;
+			stampTimes[(int)head & (STAMPS - 1)] = now;
+			stampHead = head + 1;
 		}
-		for(int i = 0; i < length; i++) {
-			buffer[bufIndex++] = (byte)chars[i];
-			if (bufIndex >= MAX_BUFFER) {
+		while (length > 0) {
+			int written = ring.write(bytes, offset, length);
+			offset += written;
+			length -= written;
+			received += written;
+			if (length > 0) {
+				// ring is full => wake flusher up and wait for it to make room
+				LockSupport.unpark(flusher);
+				LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+				if (!running) {
+					return;
+				}
+			}
+		}
+
+		// published after bytes, else flusher may clear it before they're in ring
+		if (newline) {
+			newlinePending = true;
+		}
+
+		int occupancy = ring.size();
+		if (occupancy > maxOccupancy) {
+			maxOccupancy = occupancy;
+		}
+		if (flusherWaiting || occupancy >= current.getSize() || newlinePending) {
+			LockSupport.unpark(flusher);
+		}
+	}
+
+	protected void flushLoop() {
+		while (running) {
+			if (ring.size() == 0) {
+				flusherWaiting = true;
+				// check again after having published our state, to avoid a lost wake up
+				if (ring.size() == 0 && running) {
+					LockSupport.park(this);
+				}
+				flusherWaiting = false;
+				continue;
+			}
+			FlushPolicy current = policy;
+			long now = System.nanoTime();
+			// time left before idle gap or max latency expires
+			long wait = current.getIdleNanos() - (now - lastReceive);
+			if (current.getLatency() != 0) {
+				wait = Math.min(wait, current.getLatencyNanos() - (now - batchStart));
+			}
+			if (ring.size() >= current.getSize() || newlinePending || wait <= 0) {
 				flush();
+			} else {
+				LockSupport.parkNanos(this, wait);
 			}
 		}
-		prepareFlush();
+		// send remaining data before leaving
+		flush();
+	}
+
+	/**
+	 * send buffered data to console, by chunks of at most policy size.
+	 * Must be called from flusher thread only
+	 */
+	protected void flush() {
+		newlinePending = false;
+		if (flushBuffer.length != policy.getSize()) {
+			flushBuffer = new byte[policy.getSize()];
+		}
+		int available = ring.size();
+		while (available > 0) {
+			int nb = ring.read(flushBuffer, 0, Math.min(available, flushBuffer.length));
+			if (nb == 0) {
+				break;
+			}
+			// stamps of chunks merged in this batch, first one may have begun in previous batch
+			arrivals.clear();
+			long tail = stampTail;
+			long head = stampHead;
+			while (tail + 1 < head && stampPositions[(int)(tail + 1) & (STAMPS - 1)] <= consumed) {
+				tail++;
+			}
+			arrivals.add(0, stampTimes[(int)tail & (STAMPS - 1)]);
+			while (tail + 1 < head && stampPositions[(int)(tail + 1) & (STAMPS - 1)] < consumed + nb) {
+				tail++;
+				arrivals.add((int)(stampPositions[(int)tail & (STAMPS - 1)] - consumed), stampTimes[(int)tail & (STAMPS - 1)]);
+			}
+			stampTail = tail;
+			available -= nb;
+			consumed += nb;
+			flushCount++;
+			console.onIncomingData(flushBuffer, nb, arrivals);
+			// once handed over, thus a reader of this count may wait for console queues
+			flushedBytes += nb;
+		}
+	}
+
+	@Override
+	public void dispose() throws IOException {
+		try {
+			super.dispose();
+		} finally {
+			running = false;
+			LockSupport.unpark(flusher);
+			try {
+				flusher.join(Math.max(policy.getIdle(), 100));
+			} catch (InterruptedException e) {
+				// ignored
+			}
+		}
+	}
+
+	public FlushPolicy getFlushPolicy() {
+		return policy;
+	}
+
+	/**
+	 * change flush policy. It's taken in account at next incoming chunk
+	 */
+	public void setFlushPolicy(FlushPolicy policy) {
+		this.policy = policy;
+		LockSupport.unpark(flusher);
+	}
+
+	/**
+	 * @return number of chunks sent to console
+	 */
+	public long getFlushCount() {
+		return flushCount;
+	}
+
+	/**
+	 * @return number of bytes sent to console
+	 */
+	public long getFlushedBytes() {
+		return flushedBytes;
+	}
+
+	/**
+	 * @return highest number of bytes waiting in buffer
+	 */
+	public int getMaxOccupancy() {
+		return maxOccupancy;
 	}
 }
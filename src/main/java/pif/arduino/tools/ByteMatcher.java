@@ -0,0 +1,175 @@
+package pif.arduino.tools;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streaming multi-pattern matcher on bytes (Aho-Corasick automaton).
+ *
+ * Patterns are compiled once into a transition table, then data are scanned
+ * chunk by chunk : matcher state is kept between calls, thus a pattern split
+ * between two chunks is found, and each byte is examined only once whatever
+ * number of patterns.
+ *
+ * Not thread safe : scan() calls must come from a single thread, or be synchronized.
+ * @author pif
+ */
+public class ByteMatcher {
+	public interface MatchListener {
+		/**
+		 * called for each pattern occurrence
+		 * @param pattern index of pattern, in constructor order
+		 * @param position index in scanned array of last byte of this occurrence
+		 */
+		void onMatch(int pattern, int position);
+	}
+
+	static final int[] NONE = new int[0];
+
+	protected final byte[][] patterns;
+	// transitions[state][byte] = next state
+	protected final int[][] transitions;
+	// outputs[state] = patterns ending at this state
+	protected final int[][] outputs;
+	// bytes matched so far in a state : prefix of this length of owners[state] pattern
+	protected final int[] depths;
+	protected final int[] owners;
+
+	protected int state = 0;
+
+	public ByteMatcher(List<byte[]> patterns) {
+		this(patterns.toArray(new byte[patterns.size()][]));
+	}
+
+	public ByteMatcher(byte[]... patterns) {
+		this.patterns = patterns;
+
+		int maxStates = 1;
+		for (byte[] p : patterns) {
+			if (p.length == 0) {
+				throw new IllegalArgumentException("empty pattern");
+			}
+			maxStates += p.length;
+		}
+		int[][] trie = new int[maxStates][];
+		int[][] out = new int[maxStates][];
+		int[] depth = new int[maxStates];
+		int[] owner = new int[maxStates];
+		trie[0] = new int[256];
+		out[0] = NONE;
+		int count = 1;
+
+		// build trie, 0 meaning "no transition yet" as root can't be a target
+		for (int id = 0; id < patterns.length; id++) {
+			int s = 0;
+			for (byte b : patterns[id]) {
+				int c = b & 0xff;
+				if (trie[s][c] == 0) {
+					trie[count] = new int[256];
+					out[count] = NONE;
+					depth[count] = depth[s] + 1;
+					owner[count] = id;
+					trie[s][c] = count++;
+				}
+				s = trie[s][c];
+			}
+			out[s] = append(out[s], id);
+		}
+
+		// breadth first : compute failure links and complete transitions
+		int[] fail = new int[count];
+		ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+		for (int c = 0; c < 256; c++) {
+			if (trie[0][c] != 0) {
+				fail[trie[0][c]] = 0;
+				queue.add(trie[0][c]);
+			}
+		}
+		while (!queue.isEmpty()) {
+			int s = queue.poll();
+			for (int id : out[fail[s]]) {
+				out[s] = append(out[s], id);
+			}
+			for (int c = 0; c < 256; c++) {
+				int next = trie[s][c];
+				if (next != 0) {
+					fail[next] = trie[fail[s]][c];
+					queue.add(next);
+				} else {
+					trie[s][c] = trie[fail[s]][c];
+				}
+			}
+		}
+
+		transitions = Arrays.copyOf(trie, count);
+		outputs = Arrays.copyOf(out, count);
+		depths = Arrays.copyOf(depth, count);
+		owners = Arrays.copyOf(owner, count);
+	}
+
+	static int[] append(int[] array, int value) {
+		int[] result = Arrays.copyOf(array, array.length + 1);
+		result[array.length] = value;
+		return result;
+	}
+
+	public int getPatternCount() {
+		return patterns.length;
+	}
+
+	public byte[] getPattern(int index) {
+		return patterns[index];
+	}
+
+	/**
+	 * forget bytes scanned before
+	 */
+	public void reset() {
+		state = 0;
+	}
+
+	/**
+	 * @return end of bytes scanned so far which may begin an occurrence, to be given to
+	 * {@link #resume(byte[])} of another matcher
+	 */
+	public byte[] getPartialMatch() {
+		int s = state;
+		return s == 0 ? new byte[0] : Arrays.copyOf(patterns[owners[s]], depths[s]);
+	}
+
+	/**
+	 * continue a scan begun by another matcher, without reporting occurrences
+	 * ending in already scanned bytes
+	 * @param partial from {@link #getPartialMatch()} of other matcher
+	 */
+	public void resume(byte[] partial) {
+		state = 0;
+		scan(partial, 0, partial.length, null);
+	}
+
+	/**
+	 * scan a chunk, continuing from previous ones
+	 * @param listener called for each occurrence of each pattern
+	 * @return true if any pattern was found
+	 */
+	public boolean scan(byte[] data, int from, int length, MatchListener listener) {
+		boolean found = false;
+		int s = state;
+		int[][] t = transitions;
+		for (int i = from; i < from + length; i++) {
+			s = t[s][data[i] & 0xff];
+			int[] o = outputs[s];
+			if (o.length != 0) {
+				found = true;
+				if (listener != null) {
+					for (int id : o) {
+						listener.onMatch(id, i);
+					}
+				}
+			}
+		}
+		state = s;
+		return found;
+	}
+}
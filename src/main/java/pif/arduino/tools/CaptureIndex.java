@@ -0,0 +1,277 @@
+package pif.arduino.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Sparse time to offset index of a session recorded by {@link SessionRecorder} :
+ * for each segment, offset and time of its first record, then of first
+ * record following each interval bytes, and time of its last record.
+ *
+ * Index is built in parallel, one task per segment, on first use and cached
+ * beside capture as base.idx. It's rebuilt if a segment changed since.
+ * @author pif
+ */
+public class CaptureIndex {
+	private static Logger logger = LogManager.getLogger();
+
+	public static final byte[] MAGIC = "ARDIDX01".getBytes();
+	public static final int DEFAULT_INTERVAL = 64 * 1024;
+
+	protected final File base;
+	protected final List<File> files;
+	protected final int interval;
+
+	protected long startMillis;
+	// per segment
+	protected long[] lengths;
+	protected long[] modified;
+	protected long[] lastTimes;
+	protected int[][] offsets;
+	protected long[][] times;
+
+	protected CaptureIndex(File base, List<File> files, int interval) {
+		this.base = base;
+		this.files = files;
+		this.interval = interval;
+		int count = files.size();
+		lengths = new long[count];
+		modified = new long[count];
+		lastTimes = new long[count];
+		offsets = new int[count][];
+		times = new long[count][];
+	}
+
+	public static File indexFile(File base) {
+		return new File(base.getPath() + ".idx");
+	}
+
+	/**
+	 * load cached index of a session, or build it if missing or obsolete
+	 * @param capture base name of session, or name of its first segment
+	 */
+	public static CaptureIndex open(File capture) throws IOException {
+		File base = CaptureReader.baseOf(capture);
+		List<File> files = CaptureReader.segments(base);
+		if (files.isEmpty()) {
+			throw new IOException("No capture segment for " + base);
+		}
+		CaptureIndex index = new CaptureIndex(base, files, DEFAULT_INTERVAL);
+		File cache = indexFile(base);
+		if (cache.isFile()) {
+			try {
+				if (index.load(cache)) {
+					logger.debug("using index " + cache);
+					return index;
+				}
+			} catch (IOException e) {
+				logger.warn("Ignoring unreadable index " + cache, e);
+			}
+		}
+		long start = System.nanoTime();
+		index.build();
+		logger.info(String.format("Indexed %d segments in %.3f s", files.size(), (System.nanoTime() - start) / 1e9));
+		try {
+			index.save(cache);
+		} catch (IOException e) {
+			// index is still usable, it'll be rebuilt next time
+			logger.warn("Couldn't save index " + cache, e);
+		}
+		return index;
+	}
+
+	/**
+	 * index every segment, in parallel
+	 */
+	protected void build() throws IOException {
+		final IOException[] error = new IOException[1];
+		RecursiveAction[] tasks = new RecursiveAction[files.size()];
+		for (int i = 0; i < tasks.length; i++) {
+			final int segment = i;
+			tasks[i] = new RecursiveAction() {
+				protected void compute() {
+					try {
+						indexSegment(segment);
+					} catch (IOException e) {
+						error[0] = e;
+					}
+				}
+			};
+		}
+		RecursiveAction.invokeAll(tasks);
+		if (error[0] != null) {
+			throw error[0];
+		}
+	}
+
+	protected void indexSegment(int segment) throws IOException {
+		File file = files.get(segment);
+		lengths[segment] = file.length();
+		modified[segment] = file.lastModified();
+		MappedByteBuffer buffer = CaptureReader.map(file);
+		if (segment == 0) {
+			startMillis = CaptureReader.getStartMillis(buffer);
+		}
+		int[] segmentOffsets = new int[16];
+		long[] segmentTimes = new long[16];
+		int count = 0;
+		long lastTime = -1;
+		int nextEntry = 0;
+		while (buffer.remaining() >= SessionRecorder.RECORD_HEADER_SIZE) {
+			int offset = buffer.position();
+			int length = buffer.getInt(offset);
+			long time = buffer.getLong(offset + 4);
+			if (length < 0 || length > buffer.remaining() - SessionRecorder.RECORD_HEADER_SIZE) {
+				throw new IOException("Corrupted record in " + file);
+			}
+			if (offset >= nextEntry) {
+				if (count == segmentOffsets.length) {
+					segmentOffsets = Arrays.copyOf(segmentOffsets, count * 2);
+					segmentTimes = Arrays.copyOf(segmentTimes, count * 2);
+				}
+				segmentOffsets[count] = offset;
+				segmentTimes[count] = time;
+				count++;
+				nextEntry = offset + interval;
+			}
+			lastTime = time;
+			buffer.position(offset + SessionRecorder.RECORD_HEADER_SIZE + length);
+		}
+		offsets[segment] = Arrays.copyOf(segmentOffsets, count);
+		times[segment] = Arrays.copyOf(segmentTimes, count);
+		lastTimes[segment] = lastTime;
+	}
+
+	protected void save(File cache) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cache)));
+		try {
+			out.write(MAGIC);
+			out.writeInt(interval);
+			out.writeLong(startMillis);
+			out.writeInt(files.size());
+			for (int s = 0; s < files.size(); s++) {
+				out.writeLong(lengths[s]);
+				out.writeLong(modified[s]);
+				out.writeLong(lastTimes[s]);
+				out.writeInt(offsets[s].length);
+				for (int e = 0; e < offsets[s].length; e++) {
+					out.writeInt(offsets[s][e]);
+					out.writeLong(times[s][e]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return false if cache doesn't match current segments
+	 */
+	protected boolean load(File cache) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cache)));
+		try {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC) || in.readInt() != interval) {
+				return false;
+			}
+			startMillis = in.readLong();
+			if (in.readInt() != files.size()) {
+				return false;
+			}
+			for (int s = 0; s < files.size(); s++) {
+				lengths[s] = in.readLong();
+				modified[s] = in.readLong();
+				if (lengths[s] != files.get(s).length() || modified[s] != files.get(s).lastModified()) {
+					return false;
+				}
+				lastTimes[s] = in.readLong();
+				int count = in.readInt();
+				offsets[s] = new int[count];
+				times[s] = new long[count];
+				for (int e = 0; e < count; e++) {
+					offsets[s][e] = in.readInt();
+					times[s][e] = in.readLong();
+				}
+			}
+			return true;
+		} finally {
+			in.close();
+		}
+	}
+
+	public File getBase() {
+		return base;
+	}
+
+	public List<File> getFiles() {
+		return new ArrayList<File>(files);
+	}
+
+	public int getSegmentCount() {
+		return files.size();
+	}
+
+	/**
+	 * @return session start, in ms since epoch
+	 */
+	public long getStartMillis() {
+		return startMillis;
+	}
+
+	/**
+	 * @return time of first record of a segment, in ns since session start, -1 if segment is empty
+	 */
+	public long getFirstTime(int segment) {
+		return times[segment].length == 0 ? -1 : times[segment][0];
+	}
+
+	/**
+	 * @return time of last record of a segment, in ns since session start, -1 if segment is empty
+	 */
+	public long getLastTime(int segment) {
+		return lastTimes[segment];
+	}
+
+	/**
+	 * @return true if some records of segment may be between from and to (ns since session start)
+	 */
+	public boolean overlaps(int segment, long from, long to) {
+		return times[segment].length != 0 && times[segment][0] <= to && lastTimes[segment] >= from;
+	}
+
+	/**
+	 * @return offset of a record of segment at or before first one at given time,
+	 * to begin a sequential scan there
+	 */
+	public int seek(int segment, long time) {
+		long[] segmentTimes = times[segment];
+		int found = Arrays.binarySearch(segmentTimes, time);
+		if (found < 0) {
+			// insertion point, previous entry is before time
+			found = -found - 2;
+		} else {
+			// several records may share a time, take first one
+			while (found > 0 && segmentTimes[found - 1] == time) {
+				found--;
+			}
+			// preceding records may have this time too
+			found--;
+		}
+		return found < 0 ? SessionRecorder.HEADER_SIZE : offsets[segment][found];
+	}
+}
@@ -0,0 +1,183 @@
+package pif.arduino.tools;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Read records of a session written by {@link SessionRecorder}, in order,
+ * segment after segment. Segments are memory mapped, and record data are
+ * copied into caller buffer, thus reading doesn't allocate per record.
+ *
+ * Usage :
+ * while (reader.next()) { reader.getTime(), reader.getDirection(), reader.read(buffer, 0) ... }
+ * @author pif
+ */
+public class CaptureReader implements Closeable {
+	protected final List<File> files;
+	protected int fileIndex = -1;
+	protected MappedByteBuffer segment = null;
+	protected long startMillis = 0;
+
+	// current record
+	protected int length;
+	protected long time;
+	protected byte direction;
+	protected int dataPosition;
+
+	/**
+	 * @param base base name of session, or name of its first segment (base.000)
+	 */
+	public CaptureReader(File base) throws IOException {
+		files = segments(base);
+		if (files.isEmpty()) {
+			throw new IOException("No capture segment for " + base);
+		}
+	}
+
+	/**
+	 * @return existing segment files of a session, in order
+	 */
+	public static List<File> segments(File base) {
+		base = baseOf(base);
+		List<File> result = new ArrayList<File>();
+		for (int index = 0; ; index++) {
+			File file = SessionRecorder.segmentFile(base, index);
+			if (!file.isFile()) {
+				return result;
+			}
+			result.add(file);
+		}
+	}
+
+	/**
+	 * @return base name of a session given its base name or any segment name
+	 */
+	public static File baseOf(File file) {
+		String name = file.getPath();
+		if (!file.exists() || !name.matches(".*\\.[0-9]{3}")) {
+			return file;
+		}
+		return new File(name.substring(0, name.length() - 4));
+	}
+
+	/**
+	 * map a segment and check its header
+	 * @return buffer limited to valid data, positioned on first record
+	 */
+	public static MappedByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long size = raf.length();
+			if (size < SessionRecorder.HEADER_SIZE) {
+				throw new IOException(file + " is not a capture segment");
+			}
+			// mapping stays valid once file is closed
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			byte[] magic = new byte[SessionRecorder.MAGIC.length];
+			buffer.get(magic);
+			if (!Arrays.equals(magic, SessionRecorder.MAGIC)) {
+				throw new IOException(file + " is not a capture segment");
+			}
+			long end = buffer.getLong(SessionRecorder.POSITION_OFFSET);
+			if (end < SessionRecorder.HEADER_SIZE || end > size) {
+				throw new IOException(file + " has a corrupted header");
+			}
+			buffer.limit((int)end);
+			buffer.position(SessionRecorder.HEADER_SIZE);
+			return buffer;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return session start, in ms since epoch
+	 */
+	public static long getStartMillis(MappedByteBuffer segment) {
+		return segment.getLong(SessionRecorder.MAGIC.length);
+	}
+
+	public List<File> getFiles() {
+		return files;
+	}
+
+	/**
+	 * move to next record
+	 * @return false at end of session
+	 */
+	public boolean next() throws IOException {
+		for (;;) {
+			if (segment != null) {
+				// skip data of current record, if any
+				segment.position(dataPosition + length);
+				length = 0;
+				dataPosition = segment.position();
+				if (segment.remaining() >= SessionRecorder.RECORD_HEADER_SIZE) {
+					length = segment.getInt();
+					time = segment.getLong();
+					direction = segment.get();
+					dataPosition = segment.position();
+					if (length < 0 || length > segment.remaining()) {
+						throw new IOException("Corrupted record in " + files.get(fileIndex));
+					}
+					return true;
+				}
+			}
+			if (fileIndex + 1 >= files.size()) {
+				return false;
+			}
+			segment = map(files.get(++fileIndex));
+			startMillis = getStartMillis(segment);
+			length = 0;
+			dataPosition = segment.position();
+		}
+	}
+
+	/**
+	 * @return time of current record, in ns since session start
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * @return {@link SessionRecorder#RX} or {@link SessionRecorder#TX}
+	 */
+	public byte getDirection() {
+		return direction;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public long getStartMillis() {
+		return startMillis;
+	}
+
+	/**
+	 * copy data of current record
+	 * @return its length
+	 */
+	public int read(byte[] dest, int offset) {
+		segment.position(dataPosition);
+		segment.get(dest, offset, length);
+		return length;
+	}
+
+	@Override
+	public void close() {
+		// mapping is released by GC
+		segment = null;
+		fileIndex = files.size();
+	}
+}
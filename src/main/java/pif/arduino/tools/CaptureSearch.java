@@ -0,0 +1,264 @@
+package pif.arduino.tools;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Search a recorded session for byte patterns or a regular expression,
+ * within a time range, one fork/join task per segment.
+ *
+ * Byte patterns are looked for with a {@link ByteMatcher} thru consecutive
+ * records of selected direction. Regular expression is applied to each line
+ * of the stream, bytes being mapped one to one to chars (ISO-8859-1), thus
+ * positions stay byte offsets. Occurrences spanning two segments aren't found.
+ * @author pif
+ */
+public class CaptureSearch {
+	// bytes shown before and after a pattern occurrence
+	public static final int CONTEXT = 32;
+	// longer lines are cut
+	public static final int MAX_LINE = 4096;
+
+	/**
+	 * an occurrence
+	 */
+	public static class Hit {
+		public final int segment;
+		// file offset of data, and its time in ns since session start
+		public final int offset;
+		public final long time;
+		public final byte direction;
+		// data around occurrence, or whole line for regular expressions
+		public final byte[] data;
+		// pattern index, 0 for regular expression
+		public final int pattern;
+
+		Hit(int segment, int offset, long time, byte direction, byte[] data, int pattern) {
+			this.segment = segment;
+			this.offset = offset;
+			this.time = time;
+			this.direction = direction;
+			this.data = data;
+			this.pattern = pattern;
+		}
+	}
+
+	protected final CaptureIndex index;
+	protected final byte[][] patterns;
+	protected final Pattern regex;
+	protected long from = 0;
+	protected long to = Long.MAX_VALUE;
+	// -1 for both directions
+	protected int direction = SessionRecorder.RX;
+	protected int maxHits = Integer.MAX_VALUE;
+
+	/**
+	 * search for byte patterns
+	 */
+	public CaptureSearch(CaptureIndex index, byte[]... patterns) {
+		this.index = index;
+		this.patterns = patterns;
+		this.regex = null;
+	}
+
+	/**
+	 * search for a regular expression in lines
+	 */
+	public CaptureSearch(CaptureIndex index, Pattern regex) {
+		this.index = index;
+		this.patterns = null;
+		this.regex = regex;
+	}
+
+	/**
+	 * restrict search to a time range, in ns since session start
+	 */
+	public CaptureSearch setRange(long from, long to) {
+		this.from = from;
+		this.to = to;
+		return this;
+	}
+
+	/**
+	 * @param direction {@link SessionRecorder#RX}, {@link SessionRecorder#TX}, or -1 for both
+	 */
+	public CaptureSearch setDirection(int direction) {
+		this.direction = direction;
+		return this;
+	}
+
+	/**
+	 * @param maxHits stop after this number of occurrences, earliest ones being kept
+	 */
+	public CaptureSearch setMaxHits(int maxHits) {
+		this.maxHits = maxHits;
+		return this;
+	}
+
+	/**
+	 * @return occurrences, in stream order
+	 */
+	public List<Hit> run() throws IOException {
+		List<SegmentTask> tasks = new ArrayList<SegmentTask>();
+		for (int s = 0; s < index.getSegmentCount(); s++) {
+			if (index.overlaps(s, from, to)) {
+				tasks.add(new SegmentTask(s));
+			}
+		}
+		ForkJoinPool.commonPool().invoke(new RecursiveTask<Void>() {
+			protected Void compute() {
+				invokeAll(tasks);
+				return null;
+			}
+		});
+		List<Hit> hits = new ArrayList<Hit>();
+		for (SegmentTask task : tasks) {
+			if (task.error != null) {
+				throw task.error;
+			}
+			for (Hit hit : task.getRawResult()) {
+				if (hits.size() == maxHits) {
+					return hits;
+				}
+				hits.add(hit);
+			}
+		}
+		return hits;
+	}
+
+	protected boolean selected(byte recordDirection) {
+		return direction == -1 || direction == recordDirection;
+	}
+
+	/**
+	 * search of a segment
+	 */
+	protected class SegmentTask extends RecursiveTask<List<Hit>> {
+		private static final long serialVersionUID = 1L;
+
+		final int segment;
+		final List<Hit> hits = new ArrayList<Hit>();
+		IOException error = null;
+
+		SegmentTask(int segment) {
+			this.segment = segment;
+		}
+
+		@Override
+		protected List<Hit> compute() {
+			try {
+				MappedByteBuffer buffer = CaptureReader.map(index.getFiles().get(segment));
+				buffer.position(index.seek(segment, from));
+				if (patterns != null) {
+					searchPatterns(buffer);
+				} else {
+					searchRegex(buffer);
+				}
+			} catch (IOException e) {
+				error = e;
+			}
+			return hits;
+		}
+
+		protected void searchPatterns(final MappedByteBuffer buffer) {
+			ByteMatcher matcher = new ByteMatcher(patterns);
+			byte[] data = new byte[4096];
+			while (hits.size() < maxHits && buffer.remaining() >= SessionRecorder.RECORD_HEADER_SIZE) {
+				final int length = buffer.getInt();
+				final long time = buffer.getLong();
+				final byte recordDirection = buffer.get();
+				final int offset = buffer.position();
+				if (time < from || !selected(recordDirection)) {
+					buffer.position(offset + length);
+					continue;
+				}
+				if (time > to) {
+					return;
+				}
+				if (data.length < length) {
+					data = new byte[length];
+				}
+				buffer.get(data, 0, length);
+				final byte[] chunk = data;
+				matcher.scan(chunk, 0, length, new ByteMatcher.MatchListener() {
+					public void onMatch(int pattern, int position) {
+						if (hits.size() == maxHits) {
+							return;
+						}
+						int start = Math.max(0, position + 1 - patterns[pattern].length - CONTEXT);
+						int end = Math.min(length, position + 1 + CONTEXT);
+						hits.add(new Hit(segment, offset + start, time, recordDirection,
+								Arrays.copyOfRange(chunk, start, end), pattern));
+					}
+				});
+			}
+		}
+
+		protected void searchRegex(MappedByteBuffer buffer) {
+			Matcher matcher = regex.matcher("");
+			byte[] line = new byte[256];
+			int lineLength = 0;
+			int lineOffset = 0;
+			long lineTime = 0;
+			byte lineDirection = SessionRecorder.RX;
+			while (hits.size() < maxHits && buffer.remaining() >= SessionRecorder.RECORD_HEADER_SIZE) {
+				int length = buffer.getInt();
+				long time = buffer.getLong();
+				byte recordDirection = buffer.get();
+				int offset = buffer.position();
+				buffer.position(offset + length);
+				if (time < from || !selected(recordDirection)) {
+					continue;
+				}
+				if (time > to) {
+					break;
+				}
+				for (int i = 0; i < length; i++) {
+					byte b = buffer.get(offset + i);
+					if (lineLength == 0) {
+						lineOffset = offset + i;
+						lineTime = time;
+						lineDirection = recordDirection;
+					}
+					if (b == '\n') {
+						match(matcher, line, lineLength, lineOffset, lineTime, lineDirection);
+						lineLength = 0;
+						continue;
+					}
+					if (lineLength == line.length) {
+						if (lineLength == MAX_LINE) {
+							match(matcher, line, lineLength, lineOffset, lineTime, lineDirection);
+							lineLength = 0;
+							lineOffset = offset + i;
+							lineTime = time;
+							lineDirection = recordDirection;
+						} else {
+							line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE));
+						}
+					}
+					line[lineLength++] = b;
+				}
+			}
+			if (lineLength != 0 && hits.size() < maxHits) {
+				match(matcher, line, lineLength, lineOffset, lineTime, lineDirection);
+			}
+		}
+
+		protected void match(Matcher matcher, byte[] line, int length, int offset, long time, byte recordDirection) {
+			// drop line terminator
+			int end = (length != 0 && line[length - 1] == '\r') ? length - 1 : length;
+			matcher.reset(new String(line, 0, end, StandardCharsets.ISO_8859_1));
+			if (matcher.find()) {
+				hits.add(new Hit(segment, offset, time, recordDirection, Arrays.copyOf(line, end), 0));
+			}
+		}
+	}
+}
@@ -2,57 +2,457 @@ package pif.arduino.tools;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
- * given a file name, calls onFileChange() method every time this file lastModified time changes
+ * Watch files, given by path or glob on file name (like build/*.hex), and call
+ * onFileChange() each time one of them is modified.
+ *
+ * Directories holding watched files are registered to a WatchService, thus
+ * changes are notified as they happen. If no native WatchService is available
+ * (JDK one polls every 10 s on some systems), directories are polled every
+ * {@link #POLL_PERIOD} ms instead.
+ * A write burst is debounced : a file is reported once it didn't change, in
+ * size nor modification time, for settle delay, so that a half written file
+ * isn't uploaded.
+ * Handler is called from a dispatch thread, not from watch one, thus a long
+ * upload doesn't delay detection. Changes detected while handler runs are
+ * queued once per file.
+ * Detection latency is measured from first event (or poll) seeing a change
+ * of the file to report, settle delay included.
+ * @author pif
  */
 public class FileScanner {
 	private static Logger logger = LogManager.getLogger();
-	protected File source;
-	protected FileScanHandler handler;
 
-	protected Timer timer;
-	protected long lastMod;
+	// delay without change before a file is considered complete, in ms
+	public static final int DEFAULT_SETTLE = 100;
+	public static final int POLL_PERIOD = 250;
 
 	public interface FileScanHandler {
-		void onFileChange();
+		void onFileChange(File file);
 	}
-	public FileScanner(File file, FileScanHandler handler) throws FileNotFoundException {
-		source = file;
-		if (source.exists()) {
-			logger.debug("Scanning file " + source);
-		} else {
-			logger.error("Can't find file " + source);
-			throw new FileNotFoundException();
+
+	/**
+	 * a watched path or glob
+	 */
+	protected static class Entry {
+		final String spec;
+		final Path directory;
+		final PathMatcher matcher;
+
+		Entry(String spec, Path directory, PathMatcher matcher) {
+			this.spec = spec;
+			this.directory = directory;
+			this.matcher = matcher;
+		}
+
+		boolean matches(Path file) {
+			return file.getParent() != null && file.getParent().equals(directory)
+					&& matcher.matches(file.getFileName());
 		}
-		lastMod = source.lastModified();
+	}
+
+	/**
+	 * a file being written
+	 */
+	protected static class Pending {
+		final long firstEvent;
+		long deadline;
+		long size;
+		long modified;
+
+		Pending(long firstEvent) {
+			this.firstEvent = firstEvent;
+		}
+	}
+
+	protected final FileScanHandler handler;
+	protected final int settle;
+	protected final List<Entry> entries = new CopyOnWriteArrayList<Entry>();
+	// last reported size and modification time of matching files
+	protected final Map<Path, long[]> known = new ConcurrentHashMap<Path, long[]>();
+	// files changed but not yet stable, watch thread only
+	protected final Map<Path, Pending> pending = new HashMap<Path, Pending>();
+
+	// null when polling
+	protected WatchService watcher = null;
+	protected final Set<Path> registered = new HashSet<Path>();
+	protected final Thread thread;
+	protected volatile boolean stopped = false;
+
+	// files reported but not handled yet, and thread handling them
+	protected final Set<File> queued = new LinkedHashSet<File>();
+	protected final ExecutorService dispatcher;
+	protected final Runnable dispatch = new Runnable() {
+		public void run() {
+			for (;;) {
+				File file;
+				synchronized (queued) {
+					if (queued.isEmpty()) {
+						return;
+					}
+					Iterator<File> first = queued.iterator();
+					file = first.next();
+					first.remove();
+				}
+				try {
+					handler.onFileChange(file);
+				} catch (RuntimeException e) {
+					logger.error("File change handling failed", e);
+				}
+			}
+		}
+	};
+
+	// statistics, in ms
+	protected volatile long detections = 0;
+	protected volatile long lastLatency = 0;
+	protected volatile long maxLatency = 0;
+	protected volatile long totalLatency = 0;
+
+	/**
+	 * start watching, with default settle delay, nothing until paths are added
+	 * @param polling true to poll directories even if a WatchService is available
+	 */
+	public FileScanner(FileScanHandler handler, boolean polling) {
+		this(handler, DEFAULT_SETTLE, polling);
+	}
+
+	public FileScanner(FileScanHandler handler, int settle, boolean polling) {
 		this.handler = handler;
+		this.settle = settle;
+		if (!polling) {
+			try {
+				watcher = FileSystems.getDefault().newWatchService();
+				if (watcher.getClass().getSimpleName().startsWith("Polling")) {
+					// JDK fallback, far slower than our own polling
+					watcher.close();
+					watcher = null;
+				}
+			} catch (IOException e) {
+				logger.warn("No file watch service, polling files", e);
+				watcher = null;
+			}
+		}
 
-		// scan file every 2 seconds
-		timer = new Timer();
-		TimerTask task = new TimerTask() {
-			@Override
+		dispatcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "file change");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		thread = new Thread("file watch") {
 			public void run() {
-				scanFile();
+				watch();
 			}
 		};
-		timer.schedule(task, 0, 2000);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * watch a file, with previous behaviour : it must exist
+	 */
+	public FileScanner(File file, FileScanHandler handler) throws FileNotFoundException {
+		this(handler, false);
+		if (!file.exists()) {
+			stop();
+			logger.error("Can't find file " + file);
+			throw new FileNotFoundException(file.getPath());
+		}
+		add(file.getPath());
+	}
+
+	/**
+	 * watch a file, or files whose name match a glob, like build/*.hex.
+	 * File may not exist yet, but its directory must.
+	 */
+	public void add(String spec) throws FileNotFoundException {
+		Path path = Paths.get(spec).toAbsolutePath().normalize();
+		Path directory = path.getParent();
+		if (directory == null || !Files.isDirectory(directory)) {
+			throw new FileNotFoundException("no directory for " + spec);
+		}
+		final Path name = path.getFileName();
+		PathMatcher matcher;
+		if (isGlob(name.toString())) {
+			matcher = FileSystems.getDefault().getPathMatcher("glob:" + name);
+		} else {
+			matcher = new PathMatcher() {
+				public boolean matches(Path file) {
+					return file.equals(name);
+				}
+			};
+		}
+		Entry entry = new Entry(spec, directory, matcher);
+
+		// current files aren't changes
+		for (Path file : list(entry)) {
+			known.put(file, state(file));
+		}
+		synchronized (registered) {
+			if (watcher != null && !registered.contains(directory)) {
+				try {
+					directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_MODIFY);
+				} catch (IOException e) {
+					throw new FileNotFoundException("can't watch " + directory + " : " + e.getMessage());
+				}
+				registered.add(directory);
+			}
+		}
+		entries.add(entry);
+		logger.debug("Watching " + spec);
+	}
+
+	static boolean isGlob(String name) {
+		for (char c : "*?[{".toCharArray()) {
+			if (name.indexOf(c) != -1) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	public void stop() {
-		timer.cancel();
+		stopped = true;
+		thread.interrupt();
+		synchronized (queued) {
+			dispatcher.shutdown();
+		}
+		if (watcher != null) {
+			try {
+				watcher.close();
+			} catch (IOException e) {
+				// ignored
+			}
+		}
+	}
+
+	/**
+	 * watch thread loop
+	 */
+	protected void watch() {
+		long nextPoll = System.nanoTime();
+		while (!stopped) {
+			long now = System.nanoTime();
+			long wait = watcher == null ? nextPoll - now : Long.MAX_VALUE;
+			for (Pending p : pending.values()) {
+				wait = Math.min(wait, p.deadline - now);
+			}
+			wait = Math.max(0, wait);
+			try {
+				if (watcher != null) {
+					WatchKey key = wait == Long.MAX_VALUE ? watcher.take() : watcher.poll(wait, TimeUnit.NANOSECONDS);
+					if (key != null) {
+						handleEvents(key);
+					}
+				} else {
+					TimeUnit.NANOSECONDS.sleep(wait);
+					if (System.nanoTime() - nextPoll >= 0) {
+						nextPoll = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(POLL_PERIOD);
+						poll();
+					}
+				}
+			} catch (InterruptedException e) {
+				continue;
+			} catch (ClosedWatchServiceException e) {
+				break;
+			}
+			settle();
+		}
+	}
+
+	protected void handleEvents(WatchKey key) {
+		Path directory = (Path)key.watchable();
+		long now = System.nanoTime();
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				// events lost, compare every file
+				poll();
+				continue;
+			}
+			Path file = directory.resolve((Path)event.context());
+			for (Entry entry : entries) {
+				if (entry.matches(file)) {
+					touched(file, now);
+					break;
+				}
+			}
+		}
+		key.reset();
+	}
+
+	/**
+	 * compare matching files to known ones
+	 */
+	protected void poll() {
+		long now = System.nanoTime();
+		for (Entry entry : entries) {
+			for (Path file : list(entry)) {
+				long[] previous = known.get(file);
+				long[] current = state(file);
+				if (previous == null || previous[0] != current[0] || previous[1] != current[1]) {
+					touched(file, now);
+				}
+			}
+		}
 	}
 
-	protected void scanFile() {
-		long t = source.lastModified();
-		if (lastMod < t) {
-			lastMod = t;
-			handler.onFileChange();
+	protected void touched(Path file, long now) {
+		Pending p = pending.get(file);
+		if (p == null) {
+			p = new Pending(now);
+			pending.put(file, p);
 		}
+		long[] current = state(file);
+		p.size = current[0];
+		p.modified = current[1];
+		p.deadline = now + TimeUnit.MILLISECONDS.toNanos(settle);
+	}
+
+	/**
+	 * report files which didn't change during settle delay
+	 */
+	protected void settle() {
+		long now = System.nanoTime();
+		Map<Path, Pending> ready = new HashMap<Path, Pending>();
+		for (Iterator<Map.Entry<Path, Pending>> i = pending.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry<Path, Pending> item = i.next();
+			Pending p = item.getValue();
+			if (p.deadline - now > 0) {
+				continue;
+			}
+			long[] current = state(item.getKey());
+			if (current[0] != p.size || current[1] != p.modified) {
+				// still being written
+				p.size = current[0];
+				p.modified = current[1];
+				p.deadline = now + TimeUnit.MILLISECONDS.toNanos(settle);
+				continue;
+			}
+			i.remove();
+			if (!Files.exists(item.getKey())) {
+				known.remove(item.getKey());
+				continue;
+			}
+			long[] previous = known.put(item.getKey(), current);
+			if (previous == null || previous[0] != current[0] || previous[1] != current[1]) {
+				ready.put(item.getKey(), p);
+			}
+		}
+		for (Map.Entry<Path, Pending> item : ready.entrySet()) {
+			Path file = item.getKey();
+			long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - item.getValue().firstEvent);
+			lastLatency = latency;
+			maxLatency = Math.max(maxLatency, latency);
+			totalLatency += latency;
+			detections++;
+			logger.debug("Change detected in " + file + " " + latency + " ms after first event");
+			dispatch(file.toFile());
+		}
+	}
+
+	/**
+	 * queue a change for handler, unless this file is already waiting
+	 */
+	protected void dispatch(File file) {
+		synchronized (queued) {
+			boolean idle = queued.isEmpty();
+			if (queued.add(file) && idle && !stopped) {
+				dispatcher.execute(dispatch);
+			}
+		}
+	}
+
+	protected static List<Path> list(Entry entry) {
+		List<Path> result = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(entry.directory)) {
+			for (Path file : stream) {
+				if (entry.matcher.matches(file.getFileName()) && Files.isRegularFile(file)) {
+					result.add(file);
+				}
+			}
+		} catch (IOException e) {
+			logger.warn("Can't list " + entry.directory, e);
+		}
+		return result;
+	}
+
+	/**
+	 * @return size and modification time
+	 */
+	protected static long[] state(Path file) {
+		File f = file.toFile();
+		return new long[] { f.length(), f.lastModified() };
+	}
+
+	public boolean isPolling() {
+		return watcher == null;
+	}
+
+	public List<String> getSpecs() {
+		List<String> result = new ArrayList<String>();
+		for (Entry entry : entries) {
+			result.add(entry.spec);
+		}
+		return result;
+	}
+
+	public long getDetections() {
+		return detections;
+	}
+
+	/**
+	 * @return delay between first event and report of last change, in ms
+	 */
+	public long getLastLatency() {
+		return lastLatency;
+	}
+
+	public long getMaxLatency() {
+		return maxLatency;
+	}
+
+	public long getAverageLatency() {
+		long count = detections;
+		return count == 0 ? 0 : totalLatency / count;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s (%s, settle %d ms) : %d changes, latency last %d ms, avg %d ms, max %d ms",
+				getSpecs(), isPolling() ? "polling" : "watch service", settle,
+				detections, lastLatency, getAverageLatency(), maxLatency);
 	}
 }
@@ -0,0 +1,129 @@
+package pif.arduino.tools;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Describe when data buffered by {@link BufferedSerial} must be sent to console :
+ * - idle : no byte came during this delay (ms)
+ * - size : at least this number of bytes are waiting
+ * - eol : an end of line character was received
+ * - latency : oldest waiting byte came more than this delay ago (ms), whatever
+ *   incoming traffic is. 0 means no limit
+ *
+ * Policies are immutable and described by a string like "interactive" or
+ * "idle=20,size=4096,eol,latency=200" (a preset name may be followed by overrides).
+ * @author pif
+ */
+public class FlushPolicy {
+	public static final int MAX_SIZE = 32 * 1024;
+
+	public static final FlushPolicy DEFAULT     = new FlushPolicy(100, 1024, false, 500);
+	public static final FlushPolicy INTERACTIVE = new FlushPolicy(5, 1024, true, 10);
+	public static final FlushPolicy BULK        = new FlushPolicy(250, 16 * 1024, false, 1000);
+
+	protected final int idle;
+	protected final int size;
+	protected final boolean eol;
+	protected final int latency;
+
+	public FlushPolicy(int idle, int size, boolean eol, int latency) {
+		if (idle < 0 || latency < 0) {
+			throw new IllegalArgumentException("flush delays must be positive");
+		}
+		if (size < 1 || size > MAX_SIZE) {
+			throw new IllegalArgumentException("flush size must be between 1 and " + MAX_SIZE);
+		}
+		this.idle = idle;
+		this.size = size;
+		this.eol = eol;
+		this.latency = latency;
+	}
+
+	public int getIdle() {
+		return idle;
+	}
+	public long getIdleNanos() {
+		return TimeUnit.MILLISECONDS.toNanos(idle);
+	}
+	public int getSize() {
+		return size;
+	}
+	public boolean isEol() {
+		return eol;
+	}
+	public int getLatency() {
+		return latency;
+	}
+	public long getLatencyNanos() {
+		return TimeUnit.MILLISECONDS.toNanos(latency);
+	}
+
+	/**
+	 * parse a policy description
+	 * @param spec preset name (default, interactive, bulk) and/or comma separated
+	 * list of idle=ms, size=bytes, eol, noeol, latency=ms
+	 * @throws IllegalArgumentException if spec is malformed
+	 */
+	public static FlushPolicy parse(String spec) throws IllegalArgumentException {
+		FlushPolicy base = DEFAULT;
+		int idle = base.idle, size = base.size, latency = base.latency;
+		boolean eol = base.eol;
+
+		String[] items = spec.trim().split("\\s*,\\s*");
+		for (int i = 0; i < items.length; i++) {
+			String item = items[i];
+			int equal = item.indexOf('=');
+			if (equal == -1) {
+				switch(item) {
+				case "default":
+				case "interactive":
+				case "bulk":
+					if (i != 0) {
+						throw new IllegalArgumentException("flush preset must be first in policy");
+					}
+					base = "default".equals(item) ? DEFAULT : "interactive".equals(item) ? INTERACTIVE : BULK;
+					idle = base.idle;
+					size = base.size;
+					eol = base.eol;
+					latency = base.latency;
+					break;
+				case "eol":
+					eol = true;
+					break;
+				case "noeol":
+					eol = false;
+					break;
+				default:
+					throw new IllegalArgumentException("unknown flush policy item '" + item + "'");
+				}
+				continue;
+			}
+			String key = item.substring(0, equal);
+			int value;
+			try {
+				value = Integer.parseInt(item.substring(equal + 1));
+			} catch(NumberFormatException e) {
+				throw new IllegalArgumentException("flush policy item '" + key + "' needs an integer value");
+			}
+			switch(key) {
+			case "idle":
+				idle = value;
+				break;
+			case "size":
+				size = value;
+				break;
+			case "latency":
+				latency = value;
+				break;
+			default:
+				throw new IllegalArgumentException("unknown flush policy item '" + key + "'");
+			}
+		}
+		return new FlushPolicy(idle, size, eol, latency);
+	}
+
+	@Override
+	public String toString() {
+		return "idle=" + idle + ",size=" + size + (eol ? ",eol" : ",noeol") + ",latency=" + latency;
+	}
+}
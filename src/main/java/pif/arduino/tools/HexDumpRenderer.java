@@ -0,0 +1,177 @@
+package pif.arduino.tools;
+
+/**
+ * Render a byte stream in same format than hexdump -C, chunk by chunk.
+ *
+ * Stream offset and position in current line are kept between chunks, thus
+ * a chunk which doesn't begin on a 16 bytes boundary continues at its right
+ * column, and offsets stay continuous.
+ * Lines identical to previous one are collapsed into a single '*' line.
+ *
+ * Output is built into a reusable buffer, with precomputed hex digits tables.
+ * @author pif
+ */
+public class HexDumpRenderer {
+	public static final int BYTES_PER_LINE = 16;
+
+	static final char[] DIGITS = "0123456789abcdef".toCharArray();
+	static final char[] HIGH = new char[256];
+	static final char[] LOW = new char[256];
+	static final char[] PRINTABLE = new char[256];
+	static {
+		for (int i = 0; i < 256; i++) {
+			HIGH[i] = DIGITS[i >> 4];
+			LOW[i] = DIGITS[i & 0x0f];
+			PRINTABLE[i] = (i >= 32 && i < 127) ? (char)i : '.';
+		}
+	}
+
+	// "00000000  " + 16 * "hh " + 2 spaces (one at middle) + " |" + 16 chars + "|"
+	static final int HEX_START = 10;
+	static final int ASCII_START = HEX_START + 3 * BYTES_PER_LINE + 3;
+	static final int LINE_LENGTH = ASCII_START + BYTES_PER_LINE + 1;
+
+	protected boolean collapse;
+
+	// position in stream of next byte
+	protected long offset = 0;
+	// last complete line, to detect repeats
+	protected final byte[] previous = new byte[BYTES_PER_LINE];
+	protected boolean hasPrevious = false;
+	protected boolean collapsed = false;
+
+	protected final char[] line = new char[LINE_LENGTH];
+	protected final StringBuilder output = new StringBuilder();
+
+	public HexDumpRenderer() {
+		this(true);
+	}
+
+	/**
+	 * @param collapse true to collapse repeated lines
+	 */
+	public HexDumpRenderer(boolean collapse) {
+		this.collapse = collapse;
+	}
+
+	/**
+	 * restart offsets from 0
+	 */
+	public synchronized void reset() {
+		offset = 0;
+		hasPrevious = false;
+		collapsed = false;
+	}
+
+	public synchronized long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * render a chunk
+	 * @return dump lines, separated by '\n', without trailing one. May be empty if
+	 * all lines were collapsed
+	 */
+	public synchronized String render(byte[] data, int length) {
+		output.setLength(0);
+		render(data, 0, length, output);
+		return output.toString();
+	}
+
+	/**
+	 * render a chunk and append lines to out, separated by '\n'
+	 */
+	public synchronized void render(byte[] data, int from, int length, StringBuilder out) {
+		int i = from, end = from + length;
+		while (i < end) {
+			int column = (int)(offset % BYTES_PER_LINE);
+			int count = Math.min(BYTES_PER_LINE - column, end - i);
+
+			if (column == 0 && count == BYTES_PER_LINE && collapse) {
+				if (hasPrevious && sameAsPrevious(data, i)) {
+					if (!collapsed) {
+						appendLine(out, "*");
+						collapsed = true;
+					}
+					i += count;
+					offset += count;
+					continue;
+				}
+				System.arraycopy(data, i, previous, 0, BYTES_PER_LINE);
+				hasPrevious = true;
+			} else {
+				hasPrevious = false;
+			}
+			collapsed = false;
+
+			fillLine(data, i, column, count);
+			if (out.length() != 0 && out.charAt(out.length() - 1) != '\n') {
+				out.append('\n');
+			}
+			out.append(line);
+			i += count;
+			offset += count;
+		}
+	}
+
+	/**
+	 * append bytes as space separated hex values, like "0d 0a"
+	 */
+	public static void appendHex(byte[] data, int from, int length, StringBuilder out) {
+		for (int i = from; i < from + length; i++) {
+			if (i != from) {
+				out.append(' ');
+			}
+			int b = data[i] & 0xff;
+			out.append(HIGH[b]).append(LOW[b]);
+		}
+	}
+
+	protected boolean sameAsPrevious(byte[] data, int from) {
+		for (int j = 0; j < BYTES_PER_LINE; j++) {
+			if (previous[j] != data[from + j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	protected void appendLine(StringBuilder out, String str) {
+		if (out.length() != 0 && out.charAt(out.length() - 1) != '\n') {
+			out.append('\n');
+		}
+		out.append(str);
+	}
+
+	/**
+	 * fill line template with count bytes from data, starting at given column
+	 */
+	protected void fillLine(byte[] data, int from, int column, int count) {
+		long lineOffset = offset - column;
+		for (int d = 7; d >= 0; d--) {
+			line[d] = DIGITS[(int)(lineOffset & 0x0f)];
+			lineOffset >>>= 4;
+		}
+		line[8] = ' ';
+		line[9] = ' ';
+		for (int c = 0; c < BYTES_PER_LINE; c++) {
+			int h = HEX_START + 3 * c + (c >= 8 ? 1 : 0);
+			int a = ASCII_START + c;
+			if (c >= column && c < column + count) {
+				int b = data[from + c - column] & 0xff;
+				line[h] = HIGH[b];
+				line[h + 1] = LOW[b];
+				line[a] = PRINTABLE[b];
+			} else {
+				line[h] = ' ';
+				line[h + 1] = ' ';
+				line[a] = ' ';
+			}
+			line[h + 2] = ' ';
+		}
+		line[HEX_START + 3 * 8] = ' ';
+		line[ASCII_START - 2] = ' ';
+		line[ASCII_START - 1] = '|';
+		line[LINE_LENGTH - 1] = '|';
+	}
+}
@@ -0,0 +1,212 @@
+package pif.arduino.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Remember hash of last image flashed per port and board, to skip uploads
+ * of an image identical to the one already on board.
+ *
+ * Images are hashed with SHA-256, read thru a memory mapping.
+ * Cache is a properties file, ~/.arddude/images.properties by default,
+ * with one "port|board" key per target, and "hash duration" values, duration
+ * of upload in ms giving time saved when an upload is skipped.
+ * Native uploads also keep image bytes beside, to write only changed pages
+ * next time (see {@link Stk500Uploader}).
+ * @author pif
+ */
+public class ImageCache {
+	private static Logger logger = LogManager.getLogger();
+
+	public static final File DEFAULT_FILE = new File(System.getProperty("user.home"),
+			".arddude" + File.separator + "images.properties");
+
+	// max mapped size at once
+	static final int MAP_SIZE = 1 << 26;
+
+	protected final File file;
+	protected final Properties images = new Properties();
+
+	// statistics
+	protected long skipped = 0;
+	protected long savedTime = 0;
+
+	public ImageCache() {
+		this(DEFAULT_FILE);
+	}
+
+	public ImageCache(File file) {
+		this.file = file;
+		if (file.exists()) {
+			try (InputStream input = new FileInputStream(file)) {
+				images.load(input);
+			} catch (IOException e) {
+				logger.warn("Can't read image cache " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * @return SHA-256 of file content, as hexadecimal string
+	 */
+	public static String hash(File image) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("no SHA-256 implementation", e);
+		}
+		try (FileChannel channel = FileChannel.open(image.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			for (long position = 0; position < size; position += MAP_SIZE) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(MAP_SIZE, size - position));
+				digest.update(buffer);
+			}
+		}
+		StringBuilder result = new StringBuilder();
+		for (byte b : digest.digest()) {
+			result.append(String.format("%02x", b & 0xFF));
+		}
+		return result.toString();
+	}
+
+	static String key(String port, String board) {
+		return port + "|" + board;
+	}
+
+	/**
+	 * @return true if image of this hash is the last one flashed on this target
+	 */
+	public synchronized boolean isFlashed(String port, String board, String hash) {
+		String value = images.getProperty(key(port, board));
+		return value != null && value.split(" ")[0].equals(hash);
+	}
+
+	/**
+	 * count an upload skipped because image is already on target
+	 */
+	public synchronized void skipped(String port, String board) {
+		skipped++;
+		String[] value = images.getProperty(key(port, board), "").split(" ");
+		if (value.length > 1) {
+			try {
+				savedTime += Long.parseLong(value[1]);
+			} catch (NumberFormatException e) {
+				// ignored
+			}
+		}
+	}
+
+	/**
+	 * record image flashed on target, and save cache
+	 * @param duration upload duration, in ms
+	 */
+	public synchronized void flashed(String port, String board, String hash, long duration) {
+		File previous = imageFile(port, board);
+		if (previous != null && !previous.equals(imageFile(port, board, hash))) {
+			// image bytes of another upload
+			previous.delete();
+		}
+		images.setProperty(key(port, board), hash + " " + duration);
+		save();
+	}
+
+	/**
+	 * forget image flashed on target, when upload failed and board content is unknown
+	 */
+	public synchronized void forget(String port, String board) {
+		File image = imageFile(port, board);
+		if (image != null) {
+			image.delete();
+		}
+		if (images.remove(key(port, board)) != null) {
+			save();
+		}
+	}
+
+	/**
+	 * file holding bytes of image recorded as flashed on target, named after port, board and image hash
+	 * @return null if no image recorded
+	 */
+	protected File imageFile(String port, String board) {
+		String value = images.getProperty(key(port, board));
+		return value == null ? null : imageFile(port, board, value.split(" ")[0]);
+	}
+
+	protected File imageFile(String port, String board, String hash) {
+		return new File(file.getParentFile(), key(port, board).replaceAll("[^A-Za-z0-9._-]", "_")
+				+ "-" + hash.substring(0, Math.min(16, hash.length())) + ".bin");
+	}
+
+	/**
+	 * keep bytes of image being flashed on target, before {@link #flashed(String, String, String, long)}
+	 * @param hash of image file
+	 */
+	public synchronized void saveImage(String port, String board, String hash, byte[] data, int length) {
+		File previous = imageFile(port, board);
+		if (previous != null) {
+			previous.delete();
+		}
+		file.getParentFile().mkdirs();
+		try (OutputStream output = new FileOutputStream(imageFile(port, board, hash))) {
+			output.write(data, 0, length);
+		} catch (IOException e) {
+			logger.warn("Can't save image of " + key(port, board), e);
+		}
+	}
+
+	/**
+	 * @return bytes of image recorded as flashed on target, or null if unknown
+	 */
+	public synchronized byte[] getImage(String port, String board) {
+		File image = imageFile(port, board);
+		if (image == null || !image.exists()) {
+			return null;
+		}
+		try {
+			return Files.readAllBytes(image.toPath());
+		} catch (IOException e) {
+			logger.warn("Can't read image of " + key(port, board), e);
+			return null;
+		}
+	}
+
+	protected void save() {
+		file.getParentFile().mkdirs();
+		try (OutputStream output = new FileOutputStream(file)) {
+			images.store(output, "last image flashed per port|board : sha-256 upload_duration_ms");
+		} catch (IOException e) {
+			logger.warn("Can't save image cache " + file, e);
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized long getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * @return sum of durations of skipped uploads, in ms
+	 */
+	public synchronized long getSavedTime() {
+		return savedTime;
+	}
+}
@@ -0,0 +1,157 @@
+package pif.arduino.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+
+/**
+ * Firmware image read from an Intel HEX file.
+ *
+ * Image begins at address 0, bytes not given by file are 0xFF like erased flash.
+ * Data, end of file, extended segment and extended linear address records are
+ * handled, start address records are ignored. Each record checksum is checked.
+ * @author pif
+ */
+public class IntelHex {
+	// big enough for any AVR
+	public static final int MAX_SIZE = 1 << 20;
+
+	static final int DATA = 0;
+	static final int END_OF_FILE = 1;
+	static final int EXTENDED_SEGMENT_ADDRESS = 2;
+	static final int START_SEGMENT_ADDRESS = 3;
+	static final int EXTENDED_LINEAR_ADDRESS = 4;
+	static final int START_LINEAR_ADDRESS = 5;
+
+	protected byte[] data;
+	// address after last byte given by file
+	protected int length = 0;
+
+	public IntelHex(byte[] data, int length) {
+		this.data = data;
+		this.length = length;
+	}
+
+	public static IntelHex parse(File file) throws IOException {
+		try (Reader reader = new FileReader(file)) {
+			return parse(reader, file.getName());
+		}
+	}
+
+	public static IntelHex parse(String content) throws IOException {
+		return parse(new StringReader(content), "hex");
+	}
+
+	/**
+	 * @param name used in error messages
+	 */
+	public static IntelHex parse(Reader reader, String name) throws IOException {
+		BufferedReader input = new BufferedReader(reader);
+		IntelHex result = new IntelHex(new byte[4096], 0);
+		Arrays.fill(result.data, (byte)0xFF);
+		int base = 0;
+		int lineNumber = 0;
+		boolean ended = false;
+		String line;
+		while (!ended && (line = input.readLine()) != null) {
+			lineNumber++;
+			line = line.trim();
+			if (line.isEmpty()) {
+				continue;
+			}
+			String where = name + ":" + lineNumber + " : ";
+			if (line.charAt(0) != ':' || line.length() < 11 || line.length() % 2 == 0) {
+				throw new IOException(where + "not a hex record");
+			}
+			byte[] record;
+			try {
+				record = hexTools.fromHex(line.substring(1));
+			} catch (IllegalArgumentException e) {
+				throw new IOException(where + "bad hex digits");
+			}
+			int count = record[0] & 0xFF;
+			if (record.length != count + 5) {
+				throw new IOException(where + "bad record length");
+			}
+			int sum = 0;
+			for (byte b : record) {
+				sum += b;
+			}
+			if ((sum & 0xFF) != 0) {
+				throw new IOException(where + "bad checksum");
+			}
+			int offset = ((record[1] & 0xFF) << 8) | (record[2] & 0xFF);
+			switch (record[3]) {
+			case DATA:
+				result.put(base + offset, record, 4, count, where);
+				break;
+			case END_OF_FILE:
+				ended = true;
+				break;
+			case EXTENDED_SEGMENT_ADDRESS:
+				base = (((record[4] & 0xFF) << 8) | (record[5] & 0xFF)) << 4;
+				break;
+			case EXTENDED_LINEAR_ADDRESS:
+				base = (((record[4] & 0xFF) << 8) | (record[5] & 0xFF)) << 16;
+				break;
+			case START_SEGMENT_ADDRESS:
+			case START_LINEAR_ADDRESS:
+				break;
+			default:
+				throw new IOException(where + "unknown record type " + record[3]);
+			}
+		}
+		if (!ended) {
+			throw new IOException(name + " : missing end of file record");
+		}
+		return result;
+	}
+
+	protected void put(int address, byte[] source, int from, int count, String where) throws IOException {
+		if (address < 0 || address + count > MAX_SIZE) {
+			throw new IOException(where + "address out of range");
+		}
+		if (address + count > data.length) {
+			int size = data.length;
+			data = Arrays.copyOf(data, Math.max(size * 2, address + count));
+			Arrays.fill(data, size, data.length, (byte)0xFF);
+		}
+		System.arraycopy(source, from, data, address, count);
+		length = Math.max(length, address + count);
+	}
+
+	/**
+	 * @return image bytes, from address 0. Array may be longer than image
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * @return image size, up to last byte given by file
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return true if page at this address is the same in other image
+	 */
+	public boolean samePage(byte[] other, int address, int pageSize) {
+		if (other == null) {
+			return false;
+		}
+		for (int i = address; i < address + pageSize; i++) {
+			byte mine = i < data.length ? data[i] : (byte)0xFF;
+			byte theirs = i < other.length ? other[i] : (byte)0xFF;
+			if (mine != theirs) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -8,11 +8,18 @@ import jline.console.ConsoleReader;
 /**
  * override default ConsoleReader class to add a method which inserts data
  * without breaking current command line
+ *
+ * inserted strings are coalesced and drawn by a dedicated thread, at most
+ * frameRate times per second, thus current command line is redrawn at this
+ * rate whatever number of inserted chunks.
+ * Pending text is bounded : once it holds {@link #MAX_PENDING} chars, callers
+ * wait for next frame, thus a slow terminal backs up into render queue,
+ * whose policy decides to block or drop.
  * @author pif
  */
 public class JlineConsole extends ConsoleReader {
 	Logger logger = LogManager.getLogger();
-	
+
 	static {
 		if (System.getenv("TERM") != null && System.getenv("APPDATA") != null) {
 			// if cygwin, must force terminal mode
@@ -20,23 +27,135 @@ public class JlineConsole extends ConsoleReader {
 		}
 	}
 
+	public static final int DEFAULT_FRAME_RATE = 30;
+	// max number of chars waiting for next frame
+	public static final int MAX_PENDING = 64 * 1024;
+
+	// max number of redraws per second, 0 to draw each string immediately
+	protected volatile int frameRate = DEFAULT_FRAME_RATE;
+
+	// text waiting for next frame
+	protected final StringBuilder pending = new StringBuilder();
+	protected Thread frameThread = null;
+	protected long lastFrame = 0;
+	// immediate draws and frames must not overlap
+	protected final Object drawLock = new Object();
+
+	// statistics
+	protected volatile long frames = 0;
+	protected volatile long chunks = 0;
+
 	public JlineConsole() throws IOException {
 		super();
 	}
 
+	public int getFrameRate() {
+		return frameRate;
+	}
+
+	/**
+	 * @param frameRate max number of redraws per second, 0 to disable coalescing
+	 */
+	public void setFrameRate(int frameRate) {
+		this.frameRate = frameRate;
+		synchronized (pending) {
+			pending.notifyAll();
+		}
+	}
+
+	public long getFrames() {
+		return frames;
+	}
+
+	public long getChunks() {
+		return chunks;
+	}
+
 	public void insertString(String str) throws IOException {
-		int savedPos = getCursorBuffer().cursor;
-		boolean hasToRestore = (getCursorBuffer().buffer.length() != 0);
-		if (hasToRestore) {
-			setCursorPosition(0);
-			killLine();
+		chunks++;
+		if (frameRate <= 0) {
+			draw(str);
+			return;
+		}
+		synchronized (pending) {
+			// wait for frame thread to make room
+			while (frameThread != null && pending.length() != 0
+					&& pending.length() + str.length() > MAX_PENDING) {
+				try {
+					pending.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			if (pending.length() != 0) {
+				// each chunk used to be drawn on its own line
+				pending.append('\n');
+			}
+			pending.append(str);
+			if (frameThread == null) {
+				frameThread = new Thread("console frames") {
+					public void run() {
+						frameLoop();
+					}
+				};
+				frameThread.setDaemon(true);
+				frameThread.start();
+			}
+			pending.notifyAll();
 		}
-        print("" + RESET_LINE);
-		println(str);
+	}
+
+	protected void frameLoop() {
+		for (;;) {
+			String text;
+			synchronized (pending) {
+				try {
+					if (pending.length() == 0) {
+						pending.wait();
+						continue;
+					}
+					int rate = frameRate;
+					if (rate > 0) {
+						long wait = lastFrame + 1000000000L / rate - System.nanoTime();
+						if (wait > 0) {
+							pending.wait(wait / 1000000, (int)(wait % 1000000));
+							continue;
+						}
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				text = pending.toString();
+				pending.setLength(0);
+				// writers waiting for room
+				pending.notifyAll();
+			}
+			lastFrame = System.nanoTime();
+			try {
+				draw(text);
+			} catch (IOException e) {
+				logger.error("Couldn't display incoming data", e);
+			}
+		}
+	}
+
+	protected void draw(String str) throws IOException {
+		synchronized (drawLock) {
+			frames++;
+			int savedPos = getCursorBuffer().cursor;
+			boolean hasToRestore = (getCursorBuffer().buffer.length() != 0);
+			if (hasToRestore) {
+				setCursorPosition(0);
+				killLine();
+			}
+			print("" + RESET_LINE);
+			println(str);
 
-		if (hasToRestore) {
-			yank();
+			if (hasToRestore) {
+				yank();
+			}
+			restoreLine(getPrompt(), savedPos);
 		}
-		restoreLine(getPrompt(), savedPos);
 	}
 }
@@ -0,0 +1,172 @@
+package pif.arduino.tools;
+
+import java.io.IOException;
+import java.text.MessageFormat;
+
+import jssc.SerialPort;
+import jssc.SerialPortEvent;
+import jssc.SerialPortEventListener;
+import jssc.SerialPortException;
+
+/**
+ * Real serial port, thru jssc library
+ * @author pif
+ */
+public class JsscTransport implements SerialTransport, SerialPortEventListener {
+	protected String name;
+	protected int rate;
+	protected char parity;
+	protected int databits;
+	protected float stopbits;
+	protected boolean initialRTS, initialDTR;
+	protected MySerial.FlowControl flowControl;
+
+	// null once closed, close() may run in another thread than write()
+	protected volatile SerialPort port;
+	protected Receiver receiver;
+
+	public JsscTransport(String name, int rate, MySerial.FlowControl flowControl) {
+		this(name, rate, 'N', 8, 1, true, true, flowControl);
+	}
+
+	public JsscTransport(String name, int rate, char parity, int databits, float stopbits,
+			boolean setRTS, boolean setDTR, MySerial.FlowControl flowControl) {
+		this.name = name;
+		this.rate = rate;
+		this.parity = parity;
+		this.databits = databits;
+		this.stopbits = stopbits;
+		this.initialRTS = setRTS;
+		this.initialDTR = setDTR;
+		this.flowControl = flowControl;
+	}
+
+	@Override
+	public void open(Receiver receiver) throws MySerialException {
+		this.receiver = receiver;
+
+		int jsscParity = SerialPort.PARITY_NONE;
+		if (parity == 'E')
+			jsscParity = SerialPort.PARITY_EVEN;
+		if (parity == 'O')
+			jsscParity = SerialPort.PARITY_ODD;
+
+		int jsscStopbits = SerialPort.STOPBITS_1;
+		if (stopbits == 1.5f)
+			jsscStopbits = SerialPort.STOPBITS_1_5;
+		if (stopbits == 2)
+			jsscStopbits = SerialPort.STOPBITS_2;
+
+		// published once set up
+		SerialPort opening = new SerialPort(name);
+		try {
+			opening.openPort();
+			boolean res = opening.setParams(rate, databits, jsscStopbits, jsscParity, initialRTS, initialDTR);
+			if (!res) {
+				System.err.println(MessageFormat.format("Error while setting serial port parameters: {0} {1} {2} {3}.",
+						rate, parity, databits, stopbits));
+			}
+			if (flowControl != MySerial.FlowControl.NONE && !opening.setFlowControlMode(flowControl.mask)) {
+				System.err.println(MessageFormat.format("Error while setting serial port flow control {0}.", flowControl));
+			}
+			port = opening;
+			opening.addEventListener(this);
+		} catch (SerialPortException e) {
+			try {
+				if (opening.isOpened()) {
+					opening.closePort();
+				}
+			} catch (SerialPortException ignored) {
+				// ignored
+			}
+			if (e.getPortName().startsWith("/dev")
+					&& SerialPortException.TYPE_PERMISSION_DENIED.equals(e.getExceptionType())) {
+				throw new MySerialException(
+						MessageFormat.format("Permission denied opening serial port ''{0}''.", name));
+			}
+			throw new MySerialException(MessageFormat.format("Error opening serial port ''{0}''.", name), e);
+		}
+	}
+
+	@Override
+	public void serialEvent(SerialPortEvent serialEvent) {
+		if (serialEvent.isRXCHAR()) {
+			try {
+				SerialPort current = port;
+				if (current == null) {
+					return;
+				}
+				byte[] buf = current.readBytes(serialEvent.getEventValue());
+				if (buf == null) {
+					return;
+				}
+				// jssc hands back a fresh array on each read, this is the only
+				// allocation left on the receive path
+				receiver.onReceive(buf, 0, buf.length);
+			} catch (SerialPortException e) {
+				System.err.println("Error inside Serial.serialEvent().");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) throws IOException {
+		SerialPort current = port;
+		if (current == null) {
+			throw new IOException("port is closed");
+		}
+		try {
+			// jssc needs an array of exact size
+			byte[] exact = data;
+			if (offset != 0 || length != data.length) {
+				exact = new byte[length];
+				System.arraycopy(data, offset, exact, 0, length);
+			}
+			current.writeBytes(exact);
+		} catch (SerialPortException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void setDTR(boolean state) throws IOException {
+		SerialPort current = port;
+		if (current == null) {
+			throw new IOException("port is closed");
+		}
+		try {
+			current.setDTR(state);
+		} catch (SerialPortException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void setRTS(boolean state) throws IOException {
+		SerialPort current = port;
+		if (current == null) {
+			throw new IOException("port is closed");
+		}
+		try {
+			current.setRTS(state);
+		} catch (SerialPortException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		SerialPort current = port;
+		if (current != null) {
+			port = null;
+			try {
+				if (current.isOpened()) {
+					current.closePort(); // close the port
+				}
+			} catch (SerialPortException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+}
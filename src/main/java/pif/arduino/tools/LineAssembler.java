@@ -0,0 +1,214 @@
+package pif.arduino.tools;
+
+import java.util.Arrays;
+
+/**
+ * Reassemble lines from incoming chunks, whatever way they were split.
+ *
+ * Each line is stamped with receive time of the chunk holding its first byte
+ * (System.nanoTime() based, thus monotonic), and delay since previous line.
+ * Line bytes are accumulated into a reusable buffer and handed to a listener
+ * without terminator, no object is allocated per line.
+ *
+ * Lines longer than max length are cut, remaining bytes starting a new line.
+ * Not thread safe : calls must come from a single thread, or be synchronized.
+ * @author pif
+ */
+public class LineAssembler {
+	public enum Terminator {
+		CR, LF, CRLF,
+		// any of '\r', '\n' or "\r\n"
+		ANY;
+
+		public static Terminator parse(String name) throws IllegalArgumentException {
+			switch(name) {
+			case "cr": return CR;
+			case "lf": return LF;
+			case "crlf": return CRLF;
+			case "any": return ANY;
+			default:
+				throw new IllegalArgumentException("bad line terminator '" + name + "', expected cr, lf, crlf or any");
+			}
+		}
+
+		@Override
+		public String toString() {
+			return name().toLowerCase();
+		}
+	}
+
+	public interface LineListener {
+		/**
+		 * called for each complete line. line array is reused once this method returns
+		 * @param time receive time of line first byte, in ns (System.nanoTime() reference)
+		 * @param delta delay since previous line, in ns (0 for first line)
+		 * @param complete false if line was cut because too long, or flushed before its end
+		 */
+		void onLine(byte[] line, int length, long time, long delta, boolean complete);
+	}
+
+	public static final int DEFAULT_MAX_LENGTH = 1024;
+
+	protected final Terminator terminator;
+	// 0 for no limit
+	protected final int maxLength;
+
+	protected byte[] line;
+	protected int length = 0;
+	protected long lineTime;
+	protected long previousTime = -1;
+	// last byte was a '\r' which may begin a "\r\n"
+	protected boolean crPending = false;
+
+	// statistics
+	protected volatile long lines = 0;
+	protected volatile long cutLines = 0;
+
+	/**
+	 * @param maxLength max line length, longer lines are cut. 0 for no limit, buffer then grows as needed
+	 */
+	public LineAssembler(Terminator terminator, int maxLength) {
+		if (maxLength < 0) {
+			throw new IllegalArgumentException("max line length must be positive");
+		}
+		this.terminator = terminator;
+		this.maxLength = maxLength;
+		line = new byte[maxLength == 0 ? 256 : maxLength];
+	}
+
+	public Terminator getTerminator() {
+		return terminator;
+	}
+
+	public int getMaxLength() {
+		return maxLength;
+	}
+
+	/**
+	 * @return number of bytes of current unterminated line
+	 */
+	public int getPendingLength() {
+		return length + (crPending && terminator == Terminator.CRLF ? 1 : 0);
+	}
+
+	/**
+	 * @return receive time of current unterminated line first byte
+	 */
+	public long getPendingTime() {
+		return lineTime;
+	}
+
+	public long getLines() {
+		return lines;
+	}
+
+	/**
+	 * @return number of lines cut because too long or flushed before their end
+	 */
+	public long getCutLines() {
+		return cutLines;
+	}
+
+	/**
+	 * add a chunk
+	 * @param time receive time of this chunk, in ns (System.nanoTime() reference)
+	 */
+	public void push(byte[] data, int from, int count, long time, LineListener listener) {
+		Terminator t = terminator;
+		for (int i = from; i < from + count; i++) {
+			byte b = data[i];
+			if (crPending) {
+				crPending = false;
+				if (b == '\n') {
+					// "\r\n", line was already sent in ANY mode
+					if (t == Terminator.CRLF) {
+						endLine(listener, true);
+					}
+					continue;
+				}
+				if (t == Terminator.CRLF) {
+					// lone '\r' is data
+					append((byte)'\r', time, listener);
+				}
+			}
+			switch (b) {
+			case '\r':
+				if (t == Terminator.CR) {
+					startIfEmpty(time);
+					endLine(listener, true);
+					continue;
+				} else if (t == Terminator.ANY) {
+					startIfEmpty(time);
+					endLine(listener, true);
+					crPending = true;
+					continue;
+				} else if (t == Terminator.CRLF) {
+					startIfEmpty(time);
+					crPending = true;
+					continue;
+				}
+				break;
+			case '\n':
+				if (t == Terminator.LF || t == Terminator.ANY) {
+					startIfEmpty(time);
+					endLine(listener, true);
+					continue;
+				}
+				break;
+			}
+			append(b, time, listener);
+		}
+	}
+
+	/**
+	 * hand current unterminated line to listener, if any
+	 */
+	public void flush(LineListener listener) {
+		if (crPending && terminator == Terminator.CRLF) {
+			crPending = false;
+			append((byte)'\r', lineTime, listener);
+		}
+		if (length != 0) {
+			endLine(listener, false);
+		}
+	}
+
+	/**
+	 * forget current unterminated line
+	 */
+	public void reset() {
+		length = 0;
+		crPending = false;
+	}
+
+	protected void startIfEmpty(long time) {
+		if (length == 0) {
+			lineTime = time;
+		}
+	}
+
+	protected void append(byte b, long time, LineListener listener) {
+		startIfEmpty(time);
+		if (length == line.length) {
+			if (maxLength == 0) {
+				line = Arrays.copyOf(line, line.length * 2);
+			} else {
+				endLine(listener, false);
+				lineTime = time;
+			}
+		}
+		line[length++] = b;
+	}
+
+	protected void endLine(LineListener listener, boolean complete) {
+		long delta = previousTime == -1 ? 0 : lineTime - previousTime;
+		previousTime = lineTime;
+		lines++;
+		if (!complete) {
+			cutLines++;
+		}
+		int count = length;
+		length = 0;
+		listener.onLine(line, count, lineTime, delta, complete);
+	}
+}
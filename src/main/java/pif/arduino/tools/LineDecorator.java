@@ -0,0 +1,91 @@
+package pif.arduino.tools;
+
+/**
+ * Add bytes around each line output by a {@link LineSplitter}, like a color,
+ * a timestamp or a tag telling where line comes from.
+ *
+ * Decorators are applied in order before line, and in reverse order after it.
+ * @author pif
+ */
+public interface LineDecorator {
+	/**
+	 * append what comes before line
+	 * @param time receive time of line first byte, System.nanoTime() reference
+	 */
+	void before(LineSplitter out, long time);
+
+	/**
+	 * append what comes after line, before end of line
+	 */
+	void after(LineSplitter out, long time);
+
+	/**
+	 * fixed prefix and suffix, like ANSI color codes
+	 */
+	public static class Mask implements LineDecorator {
+		protected final byte[] prefix;
+		protected final byte[] suffix;
+
+		public Mask(String prefix, String suffix) {
+			this.prefix = prefix.getBytes();
+			this.suffix = suffix.getBytes();
+		}
+
+		public void before(LineSplitter out, long time) {
+			out.append(prefix, 0, prefix.length);
+		}
+
+		public void after(LineSplitter out, long time) {
+			out.append(suffix, 0, suffix.length);
+		}
+	}
+
+	/**
+	 * ANSI color
+	 */
+	public static class Color extends Mask {
+		public static final String GREEN = "\033[32m";
+		public static final String RED = "\033[91m";
+		public static final String RESET = "\033[0m";
+
+		public Color(String color) {
+			super(color, RESET);
+		}
+	}
+
+	/**
+	 * source tag, like "ERR "
+	 */
+	public static class Tag extends Mask {
+		public Tag(String tag) {
+			super(tag, "");
+		}
+	}
+
+	/**
+	 * seconds elapsed since decorator creation, with ms precision, like "[12.345] "
+	 */
+	public static class Timestamp implements LineDecorator {
+		protected final long start = System.nanoTime();
+
+		public void before(LineSplitter out, long time) {
+			long millis = Math.max(0, time - start) / 1000000;
+			out.append((byte)'[');
+			out.append(millis / 1000);
+			out.append((byte)'.');
+			long fraction = millis % 1000;
+			if (fraction < 100) {
+				out.append((byte)'0');
+			}
+			if (fraction < 10) {
+				out.append((byte)'0');
+			}
+			out.append(fraction);
+			out.append((byte)']');
+			out.append((byte)' ');
+		}
+
+		public void after(LineSplitter out, long time) {
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package pif.arduino.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decide if an incoming line must be displayed, hidden or highlighted,
+ * according to a set of byte patterns :
+ * - SHOW : if any, only lines containing one of them are displayed
+ * - HIDE : lines containing one of them are not displayed
+ * - HIGHLIGHT : lines containing one of them are highlighted
+ *
+ * All patterns are compiled into a single {@link ByteMatcher}, thus each line
+ * is scanned once whatever number of patterns.
+ * Filters are immutable, adding or removing patterns gives a new one.
+ * classify() isn't thread safe, calls must come from a single thread, or be synchronized.
+ * @author pif
+ */
+public class LineFilter {
+	public enum Kind {
+		SHOW, HIDE, HIGHLIGHT;
+
+		@Override
+		public String toString() {
+			return name().toLowerCase();
+		}
+	}
+
+	// classify() result flags
+	public static final int MATCHED = 1;
+	public static final int SUPPRESSED = 2;
+	public static final int HIGHLIGHTED = 4;
+
+	public static final LineFilter NONE = new LineFilter(new Kind[0], new byte[0][]);
+
+	protected final Kind[] kinds;
+	protected final byte[][] patterns;
+	protected final ByteMatcher matcher;
+	protected final boolean hasShow;
+
+	// kinds found in line being classified
+	protected boolean shown, hidden, highlighted;
+	protected final ByteMatcher.MatchListener listener = new ByteMatcher.MatchListener() {
+		public void onMatch(int pattern, int position) {
+			switch (kinds[pattern]) {
+			case SHOW:
+				shown = true;
+				break;
+			case HIDE:
+				hidden = true;
+				break;
+			case HIGHLIGHT:
+				highlighted = true;
+				break;
+			}
+		}
+	};
+
+	protected LineFilter(Kind[] kinds, byte[][] patterns) {
+		this.kinds = kinds;
+		this.patterns = patterns;
+		matcher = patterns.length == 0 ? null : new ByteMatcher(patterns);
+		boolean show = false;
+		for (Kind kind : kinds) {
+			show |= (kind == Kind.SHOW);
+		}
+		hasShow = show;
+	}
+
+	/**
+	 * @return a filter with one more pattern
+	 */
+	public LineFilter with(Kind kind, byte[] pattern) {
+		if (pattern.length == 0) {
+			throw new IllegalArgumentException("empty pattern");
+		}
+		Kind[] newKinds = Arrays.copyOf(kinds, kinds.length + 1);
+		byte[][] newPatterns = Arrays.copyOf(patterns, patterns.length + 1);
+		newKinds[kinds.length] = kind;
+		newPatterns[patterns.length] = pattern;
+		return new LineFilter(newKinds, newPatterns);
+	}
+
+	/**
+	 * @return a filter without patterns of given kind
+	 */
+	public LineFilter without(Kind kind) {
+		List<Kind> newKinds = new ArrayList<Kind>();
+		List<byte[]> newPatterns = new ArrayList<byte[]>();
+		for (int i = 0; i < kinds.length; i++) {
+			if (kinds[i] != kind) {
+				newKinds.add(kinds[i]);
+				newPatterns.add(patterns[i]);
+			}
+		}
+		return new LineFilter(newKinds.toArray(new Kind[newKinds.size()]),
+				newPatterns.toArray(new byte[newPatterns.size()][]));
+	}
+
+	public boolean isEmpty() {
+		return patterns.length == 0;
+	}
+
+	/**
+	 * @return patterns of given kind
+	 */
+	public List<byte[]> getPatterns(Kind kind) {
+		List<byte[]> result = new ArrayList<byte[]>();
+		for (int i = 0; i < kinds.length; i++) {
+			if (kinds[i] == kind) {
+				result.add(patterns[i]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return combination of MATCHED, SUPPRESSED and HIGHLIGHTED flags
+	 */
+	public int classify(byte[] line, int from, int length) {
+		if (matcher == null) {
+			return 0;
+		}
+		shown = hidden = highlighted = false;
+		matcher.reset();
+		boolean matched = matcher.scan(line, from, length, listener);
+		int result = matched ? MATCHED : 0;
+		if (hidden || (hasShow && !shown)) {
+			result |= SUPPRESSED;
+		} else if (highlighted) {
+			result |= HIGHLIGHTED;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,144 @@
+package pif.arduino.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Split a byte stream into lines and write them decorated (see {@link LineDecorator}).
+ *
+ * Lines may be of any length, and end with '\r', '\n' or "\r\n", even split
+ * between two reads (see {@link LineAssembler}). Each decorated line is built
+ * into a reusable buffer and written with a single write call, under a lock
+ * on output, thus lines of several splitters sharing an output don't mix.
+ * @author pif
+ */
+public class LineSplitter implements LineAssembler.LineListener {
+	protected final OutputStream output;
+	protected final LineDecorator[] decorators;
+	protected final LineAssembler assembler = new LineAssembler(LineAssembler.Terminator.ANY, 0);
+
+	protected byte[] readBuffer = new byte[8192];
+	// decorated line being built
+	protected byte[] line = new byte[256];
+	protected int length = 0;
+
+	// statistics
+	protected long lines = 0;
+	protected long bytes = 0;
+
+	public LineSplitter(OutputStream output, LineDecorator... decorators) {
+		this.output = output;
+		this.decorators = decorators;
+	}
+
+	/**
+	 * read available bytes from input, blocking until some come, and output complete lines
+	 * @return false at end of input
+	 */
+	public boolean forward(InputStream input) throws IOException {
+		int nb = input.read(readBuffer);
+		if (nb < 0) {
+			return false;
+		}
+		push(readBuffer, 0, nb);
+		return true;
+	}
+
+	/**
+	 * output complete lines of a chunk, keeping last unterminated one for next call
+	 */
+	public void push(byte[] data, int offset, int count) throws IOException {
+		try {
+			assembler.push(data, offset, count, System.nanoTime(), this);
+		} catch (UncheckedIO e) {
+			throw e.cause;
+		}
+	}
+
+	/**
+	 * output last line, even if unterminated, and flush output
+	 */
+	public void flush() throws IOException {
+		try {
+			assembler.flush(this);
+		} catch (UncheckedIO e) {
+			throw e.cause;
+		}
+		output.flush();
+	}
+
+	// carries IOException thru LineListener
+	static class UncheckedIO extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		final IOException cause;
+
+		UncheckedIO(IOException cause) {
+			this.cause = cause;
+		}
+	}
+
+	@Override
+	public void onLine(byte[] data, int count, long time, long delta, boolean complete) {
+		length = 0;
+		for (int i = 0; i < decorators.length; i++) {
+			decorators[i].before(this, time);
+		}
+		append(data, 0, count);
+		for (int i = decorators.length - 1; i >= 0; i--) {
+			decorators[i].after(this, time);
+		}
+		append((byte)'\n');
+		try {
+			synchronized (output) {
+				output.write(line, 0, length);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIO(e);
+		}
+		lines++;
+		bytes += count;
+	}
+
+	protected void ensure(int count) {
+		if (length + count > line.length) {
+			line = Arrays.copyOf(line, Math.max(line.length * 2, length + count));
+		}
+	}
+
+	/**
+	 * append bytes to line being built. For decorators
+	 */
+	public void append(byte[] data, int offset, int count) {
+		ensure(count);
+		System.arraycopy(data, offset, line, length, count);
+		length += count;
+	}
+
+	public void append(byte b) {
+		ensure(1);
+		line[length++] = b;
+	}
+
+	/**
+	 * append decimal digits of a positive number
+	 */
+	public void append(long value) {
+		if (value >= 10) {
+			append(value / 10);
+		}
+		append((byte)('0' + value % 10));
+	}
+
+	public long getLines() {
+		return lines;
+	}
+
+	/**
+	 * @return number of line bytes, without terminators nor decorations
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+}
@@ -0,0 +1,227 @@
+package pif.arduino.tools;
+
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In memory stand-in for a serial port, for url like
+ * loop://?bandwidth=11520&amp;latency=2&amp;jitter=1
+ *
+ * Bytes written by host are handed to a simulated device (see {@link Peer},
+ * echo by default), and bytes sent by this device come back to host.
+ * Each direction simulates a wire with a bandwidth (bytes per second, 0 for
+ * no limit), a latency and a random jitter (in ms). Order is preserved.
+ * @author pif
+ */
+public class LoopbackTransport implements SerialTransport {
+	public static final String SCHEME = "loop://";
+
+	/**
+	 * simulated device at other end of link
+	 */
+	public static abstract class Peer {
+		protected LoopbackTransport link;
+
+		void attach(LoopbackTransport link) {
+			this.link = link;
+		}
+
+		/**
+		 * called once link is open
+		 */
+		public void onOpen() {
+		}
+
+		/**
+		 * called with bytes written by host, once they went thru the wire
+		 */
+		public abstract void onData(byte[] data, int offset, int length);
+
+		public void onDTR(boolean state) {
+		}
+
+		public void onRTS(boolean state) {
+		}
+
+		/**
+		 * called when link is closed
+		 */
+		public void onClose() {
+		}
+
+		/**
+		 * send bytes to host
+		 */
+		protected void send(byte[] data, int offset, int length) {
+			link.toHost.push(data, offset, length);
+		}
+	}
+
+	/**
+	 * device which sends back everything it receives
+	 */
+	public static class Echo extends Peer {
+		@Override
+		public void onData(byte[] data, int offset, int length) {
+			send(data, offset, length);
+		}
+	}
+
+	static class Packet {
+		final long deliverAt;
+		final byte[] data;
+
+		Packet(long deliverAt, byte[] data) {
+			this.deliverAt = deliverAt;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * one direction of link
+	 */
+	abstract class Wire implements Runnable {
+		final LinkedBlockingQueue<Packet> queue = new LinkedBlockingQueue<Packet>();
+		long lastDelivery = 0;
+		Thread thread;
+
+		Wire(String name) {
+			thread = new Thread(this, name);
+			thread.setDaemon(true);
+		}
+
+		synchronized void push(byte[] data, int offset, int length) {
+			long at = System.nanoTime() + latency;
+			if (jitter != 0) {
+				at += (long)(random.nextDouble() * jitter);
+			}
+			// can't overtake previous data
+			at = Math.max(at, lastDelivery);
+			if (bandwidth != 0) {
+				at += TimeUnit.SECONDS.toNanos(length) / bandwidth;
+			}
+			lastDelivery = at;
+			queue.add(new Packet(at, Arrays.copyOfRange(data, offset, offset + length)));
+		}
+
+		public void run() {
+			try {
+				for (;;) {
+					Packet packet = queue.take();
+					long wait = packet.deliverAt - System.nanoTime();
+					if (wait > 0) {
+						TimeUnit.NANOSECONDS.sleep(wait);
+					}
+					deliver(packet.data);
+				}
+			} catch (InterruptedException e) {
+				// closed
+			}
+		}
+
+		abstract void deliver(byte[] data);
+	}
+
+	protected final int bandwidth;
+	protected final long latency;
+	protected final long jitter;
+	protected final Peer peer;
+	protected final Random random = new Random();
+
+	protected Receiver receiver;
+	protected Wire toHost, toDevice;
+
+	/**
+	 * @param bandwidth bytes per second, 0 for no limit
+	 * @param latency in ms
+	 * @param jitter in ms
+	 * @param peer simulated device
+	 */
+	public LoopbackTransport(int bandwidth, int latency, int jitter, Peer peer) {
+		this.bandwidth = bandwidth;
+		this.latency = TimeUnit.MILLISECONDS.toNanos(latency);
+		this.jitter = TimeUnit.MILLISECONDS.toNanos(jitter);
+		this.peer = peer;
+		peer.attach(this);
+
+		toHost = new Wire("loopback to host") {
+			void deliver(byte[] data) {
+				receiver.onReceive(data, 0, data.length);
+			}
+		};
+		toDevice = new Wire("loopback to device") {
+			void deliver(byte[] data) {
+				LoopbackTransport.this.peer.onData(data, 0, data.length);
+			}
+		};
+	}
+
+	/**
+	 * @param url loop:// optionally followed by ?bandwidth=bytes/s&amp;latency=ms&amp;jitter=ms
+	 * @param baudrate used to compute default bandwidth
+	 * @param peer simulated device
+	 */
+	public static LoopbackTransport parse(String url, int baudrate, Peer peer) throws MySerialException {
+		int bandwidth = baudrate / 10, latency = 0, jitter = 0;
+		int query = url.indexOf('?');
+		if (query != -1) {
+			for (String item : url.substring(query + 1).split("&")) {
+				int equal = item.indexOf('=');
+				try {
+					String key = item.substring(0, equal);
+					int value = Integer.parseInt(item.substring(equal + 1));
+					switch(key) {
+					case "bandwidth":
+						bandwidth = value;
+						break;
+					case "latency":
+						latency = value;
+						break;
+					case "jitter":
+						jitter = value;
+						break;
+					default:
+						throw new MySerialException(MessageFormat.format("Unknown loopback parameter ''{0}''.", key));
+					}
+				} catch(NumberFormatException | StringIndexOutOfBoundsException e) {
+					throw new MySerialException(MessageFormat.format("Bad loopback parameter ''{0}''.", item));
+				}
+			}
+		}
+		return new LoopbackTransport(bandwidth, latency, jitter, peer);
+	}
+
+	@Override
+	public void open(Receiver receiver) {
+		this.receiver = receiver;
+		toHost.thread.start();
+		toDevice.thread.start();
+		peer.onOpen();
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) {
+		toDevice.push(data, offset, length);
+	}
+
+	@Override
+	public void setDTR(boolean state) {
+		peer.onDTR(state);
+	}
+
+	@Override
+	public void setRTS(boolean state) {
+		peer.onRTS(state);
+	}
+
+	@Override
+	public void close() throws IOException {
+		toHost.thread.interrupt();
+		toDevice.thread.interrupt();
+		peer.onClose();
+	}
+}
@@ -7,8 +7,6 @@
 package pif.arduino.tools;
 
 import jssc.SerialPort;
-import jssc.SerialPortEvent;
-import jssc.SerialPortEventListener;
 import jssc.SerialPortException;
 
 import java.io.IOException;
@@ -20,27 +18,167 @@ import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 import java.text.MessageFormat;
 
-abstract public class MySerial implements SerialPortEventListener {
-	private SerialPort port;
+abstract public class MySerial {
+	private volatile SerialTransport port;
 
 	private static final int IN_BUFFER_CAPACITY = 128;
 	private static final int OUT_BUFFER_CAPACITY = 128;
+	// max delay to send pending data when closing port, in ms
+	private static final int DRAIN_TIMEOUT = 2000;
+
+	private SerialWriter writer;
+	private volatile SessionRecorder recorder = null;
+	// receiver taking incoming bytes instead of message()
+	private volatile SerialTransport.Receiver divert = null;
 
 	private CharsetDecoder bytesToStrings;
 	private ByteBuffer inFromSerial = ByteBuffer.allocate(IN_BUFFER_CAPACITY);
 	private CharBuffer outToMessage = CharBuffer.allocate(OUT_BUFFER_CAPACITY);
 
+	// receive path statistics
+	private volatile long rxEvents = 0;
+	private volatile long rxBytes = 0;
+
 	/**
-	 * This method is intented to be extended to receive messages coming from serial
+	 * This method is intented to be extended to receive raw bytes coming from serial
 	 * port.
+	 * Default implementation decodes them with current charset (see
+	 * {@link #resetDecoding(Charset)}) and hands result to {@link #message(char[], int)}.
+	 * Subclasses which only need bytes should override this one, thus skipping decoding.
+	 * Caution : bytes array may be reused by next call, it must be consumed or copied
+	 * before returning.
+	 */
+	protected synchronized void message(byte[] bytes, int offset, int length) {
+		int next = offset, end = offset + length;
+		while (next < end) {
+			while (next < end && outToMessage.hasRemaining()) {
+				int spaceInIn = inFromSerial.remaining();
+				int copyNow = end - next < spaceInIn ? end - next : spaceInIn;
+				inFromSerial.put(bytes, next, copyNow);
+				next += copyNow;
+				inFromSerial.flip();
+				bytesToStrings.decode(inFromSerial, outToMessage, false);
+				inFromSerial.compact();
+			}
+			outToMessage.flip();
+			if (outToMessage.hasRemaining()) {
+				// outToMessage is heap allocated and flipped, thus its backing
+				// array holds decoded chars from index 0 : hand it directly
+				// instead of copying to a new array
+				message(outToMessage.array(), outToMessage.remaining());
+			}
+			outToMessage.clear();
+		}
+	}
+
+	/**
+	 * This method is intented to be extended to receive messages coming from serial
+	 * port, decoded as chars.
+	 * It's only called if {@link #message(byte[], int, int)} is not overridden.
+	 * Caution : chars array is reused by next call, it must be consumed or copied
+	 * before returning.
 	 */
-	abstract protected void message(char[] chars, int length);
+	protected void message(char[] chars, int length) {
+	}
+
+	/**
+	 * flow control modes
+	 */
+	public enum FlowControl {
+		NONE(SerialPort.FLOWCONTROL_NONE),
+		RTSCTS(SerialPort.FLOWCONTROL_RTSCTS_IN | SerialPort.FLOWCONTROL_RTSCTS_OUT),
+		XONXOFF(SerialPort.FLOWCONTROL_XONXOFF_IN | SerialPort.FLOWCONTROL_XONXOFF_OUT);
+
+		final int mask;
+
+		FlowControl(int mask) {
+			this.mask = mask;
+		}
+
+		public static FlowControl parse(String name) throws IllegalArgumentException {
+			switch(name) {
+			case "none": return NONE;
+			case "rtscts": return RTSCTS;
+			case "xonxoff": return XONXOFF;
+			default:
+				throw new IllegalArgumentException("bad flow control '" + name + "', expected none, rtscts or xonxoff");
+			}
+		}
+
+		@Override
+		public String toString() {
+			return name().toLowerCase();
+		}
+	}
 
 	public MySerial(String iname, int irate) throws MySerialException {
-		this(iname, irate, 'N', 8, 1, true, true);
+		this(iname, irate, FlowControl.NONE);
+	}
+
+	public MySerial(String iname, int irate, FlowControl flowControl) throws MySerialException {
+		this(createTransport(iname, irate, flowControl));
+	}
+
+	public MySerial(SerialTransport transport) throws MySerialException {
+		this(transport, true);
+	}
+
+	/**
+	 * @param open false to let subclass initialize itself before calling {@link #open()},
+	 * thus before first incoming bytes
+	 */
+	protected MySerial(SerialTransport transport, boolean open) throws MySerialException {
+		resetDecoding(StandardCharsets.UTF_8);
+
+		port = transport;
+		if (open) {
+			open();
+		}
+	}
+
+	protected void open() throws MySerialException {
+		port.open(new SerialTransport.Receiver() {
+			public void onReceive(byte[] data, int offset, int length) {
+				rxEvents++;
+				rxBytes += length;
+				SessionRecorder rec = recorder;
+				if (rec != null) {
+					rec.record(SessionRecorder.RX, data, offset, length);
+				}
+				SerialTransport.Receiver diverted = divert;
+				if (diverted != null) {
+					diverted.onReceive(data, offset, length);
+				} else {
+					message(data, offset, length);
+				}
+			}
+		});
+		startWriter();
+	}
+
+	/**
+	 * create link matching port name :
+	 * tcp://host:port for a TCP socket, loop://... for an in memory loopback
+	 * (see {@link LoopbackTransport}), else a real serial port
+	 */
+	public static SerialTransport createTransport(String iname, int irate, FlowControl flowControl) throws MySerialException {
+		if (iname.startsWith(TcpTransport.SCHEME)) {
+			return new TcpTransport(iname);
+		} else if (iname.startsWith(LoopbackTransport.SCHEME)) {
+			return LoopbackTransport.parse(iname, irate, new LoopbackTransport.Echo());
+		} else if (iname.startsWith(ReplayTransport.SCHEME)) {
+			return ReplayTransport.parse(iname);
+		} else {
+			return new JsscTransport(iname, irate, flowControl);
+		}
 	}
 
 	public static boolean touchForCDCReset(String iname) throws MySerialException {
+		if (iname.startsWith(TcpTransport.SCHEME) || iname.startsWith(LoopbackTransport.SCHEME)
+				|| iname.startsWith(ReplayTransport.SCHEME)) {
+			// nothing to reset
+			return false;
+		}
 		SerialPort serialPort = new SerialPort(iname);
 		try {
 			serialPort.openPort();
@@ -61,47 +199,46 @@ abstract public class MySerial implements SerialPortEventListener {
 		}
 	}
 
-	private MySerial(String iname, int irate, char iparity, int idatabits, float istopbits, boolean setRTS,
-			boolean setDTR) throws MySerialException {
-		// if (port != null) port.close();
-		// this.parent = parent;
-		// parent.attach(this);
-
-		resetDecoding(StandardCharsets.UTF_8);
+	/**
+	 * outgoing data go thru an asynchronous writer, to coalesce small writes
+	 */
+	private void startWriter() {
+		writer = new SerialWriter(new SerialWriter.Sink() {
+			public void send(byte[] data, int length) throws IOException {
+				SerialTransport current = port;
+				if (current == null) {
+					throw new IOException("port is closed");
+				}
+				SessionRecorder rec = recorder;
+				if (rec != null) {
+					rec.record(SessionRecorder.TX, data, 0, length);
+				}
+				current.write(data, 0, length);
+			}
+		});
+	}
 
-		int parity = SerialPort.PARITY_NONE;
-		if (iparity == 'E')
-			parity = SerialPort.PARITY_EVEN;
-		if (iparity == 'O')
-			parity = SerialPort.PARITY_ODD;
+	public SerialWriter getWriter() {
+		return writer;
+	}
 
-		int stopbits = SerialPort.STOPBITS_1;
-		if (istopbits == 1.5f)
-			stopbits = SerialPort.STOPBITS_1_5;
-		if (istopbits == 2)
-			stopbits = SerialPort.STOPBITS_2;
+	/**
+	 * record every incoming and outgoing chunk into given recorder, null to stop
+	 */
+	public void setRecorder(SessionRecorder recorder) {
+		this.recorder = recorder;
+	}
 
-		try {
-			port = new SerialPort(iname);
-			port.openPort();
-			boolean res = port.setParams(irate, idatabits, stopbits, parity, setRTS, setDTR);
-			if (!res) {
-				System.err.println(MessageFormat.format("Error while setting serial port parameters: {0} {1} {2} {3}.",
-						irate, iparity, idatabits, istopbits));
-			}
-			port.addEventListener(this);
-		} catch (SerialPortException e) {
-			if (e.getPortName().startsWith("/dev")
-					&& SerialPortException.TYPE_PERMISSION_DENIED.equals(e.getExceptionType())) {
-				throw new MySerialException(
-						MessageFormat.format("Permission denied opening serial port ''{0}''.", iname));
-			}
-			throw new MySerialException(MessageFormat.format("Error opening serial port ''{0}''.", iname), e);
-		}
+	/**
+	 * hand incoming bytes to given receiver instead of {@link #message(byte[], int, int)},
+	 * to talk to a bootloader without closing port. null to restore
+	 */
+	public void setDivert(SerialTransport.Receiver receiver) {
+		divert = receiver;
+	}
 
-		if (port == null) {
-			throw new MySerialException(MessageFormat.format("Serial port ''{0}'' not found.", iname));
-		}
+	public SerialTransport getTransport() {
+		return port;
 	}
 
 	public void setup() {
@@ -109,66 +246,52 @@ abstract public class MySerial implements SerialPortEventListener {
 	}
 
 	public void dispose() throws IOException {
+		if (writer != null) {
+			// let pending data go before closing
+			if (!writer.drain(DRAIN_TIMEOUT)) {
+				System.err.println("Some outgoing data couldn't be sent before closing port.");
+			}
+			writer.close();
+		}
 		if (port != null) {
 			try {
-				if (port.isOpened()) {
-					port.closePort(); // close the port
-				}
-			} catch (SerialPortException e) {
-				throw new IOException(e);
+				port.close();
 			} finally {
 				port = null;
 			}
 		}
 	}
 
-	@Override
-	public synchronized void serialEvent(SerialPortEvent serialEvent) {
-		if (serialEvent.isRXCHAR()) {
-			try {
-				byte[] buf = port.readBytes(serialEvent.getEventValue());
-				int next = 0;
-				while (next < buf.length) {
-					while (next < buf.length && outToMessage.hasRemaining()) {
-						int spaceInIn = inFromSerial.remaining();
-						int copyNow = buf.length - next < spaceInIn ? buf.length - next : spaceInIn;
-						inFromSerial.put(buf, next, copyNow);
-						next += copyNow;
-						inFromSerial.flip();
-						bytesToStrings.decode(inFromSerial, outToMessage, false);
-						inFromSerial.compact();
-					}
-					outToMessage.flip();
-					if (outToMessage.hasRemaining()) {
-						char[] chars = new char[outToMessage.remaining()];
-						outToMessage.get(chars);
-						message(chars, chars.length);
-					}
-					outToMessage.clear();
-				}
-			} catch (SerialPortException e) {
-				errorMessage("serialEvent", e);
-			}
-		}
+	/**
+	 * @return number of RX events handled since port opening
+	 */
+	public long getRxEvents() {
+		return rxEvents;
+	}
+
+	/**
+	 * @return number of bytes received since port opening
+	 */
+	public long getRxBytes() {
+		return rxBytes;
 	}
 
 	/**
 	 * This will handle both ints, bytes and chars transparently.
 	 */
 	public void write(int what) { // will also cover char
-		try {
-			port.writeInt(what & 0xff);
-		} catch (SerialPortException e) {
-			errorMessage("write", e);
-		}
+		write(new byte[] { (byte)what });
 	}
 
+	/**
+	 * queue bytes to send. Caller is blocked if too many data are waiting
+	 */
 	public void write(byte bytes[]) {
-		try {
-			port.writeBytes(bytes);
-		} catch (SerialPortException e) {
-			errorMessage("write", e);
-		}
+		write(bytes, 0, bytes.length);
+	}
+
+	public void write(byte bytes[], int offset, int length) {
+		writer.write(bytes, offset, length);
 	}
 
 	/**
@@ -189,7 +312,7 @@ abstract public class MySerial implements SerialPortEventListener {
 	public void setDTR(boolean state) {
 		try {
 			port.setDTR(state);
-		} catch (SerialPortException e) {
+		} catch (IOException e) {
 			errorMessage("setDTR", e);
 		}
 	}
@@ -197,14 +320,14 @@ abstract public class MySerial implements SerialPortEventListener {
 	public void setRTS(boolean state) {
 		try {
 			port.setRTS(state);
-		} catch (SerialPortException e) {
+		} catch (IOException e) {
 			errorMessage("setRTS", e);
 		}
 	}
 
 	/**
 	 * Reset the encoding used to convert the bytes coming in before they are handed
-	 * as Strings to {@Link #message(char[], int)}.
+	 * as Strings to {@link #message(char[], int)}.
 	 */
 	public synchronized void resetDecoding(Charset charset) {
 		bytesToStrings = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
@@ -0,0 +1,90 @@
+package pif.arduino.tools;
+
+/**
+ * Describe how fast outgoing data may be sent by {@link SerialWriter} :
+ * - rate : max throughput in bytes per second, 0 for no limit
+ * - chunk : max number of bytes sent at once, 0 for no limit
+ * - gap : pause after each chunk, in ms
+ *
+ * Pacings are immutable and described by a string like "rate=5000,chunk=32,gap=2",
+ * or "none".
+ * @author pif
+ */
+public class Pacing {
+	public static final Pacing NONE = new Pacing(0, 0, 0);
+
+	protected final int rate;
+	protected final int chunk;
+	protected final int gap;
+
+	public Pacing(int rate, int chunk, int gap) {
+		if (rate < 0 || chunk < 0 || gap < 0) {
+			throw new IllegalArgumentException("pacing values must be positive");
+		}
+		this.rate = rate;
+		this.chunk = chunk;
+		this.gap = gap;
+	}
+
+	public int getRate() {
+		return rate;
+	}
+	public int getChunk() {
+		return chunk;
+	}
+	public int getGap() {
+		return gap;
+	}
+
+	public boolean isNone() {
+		return rate == 0 && chunk == 0 && gap == 0;
+	}
+
+	/**
+	 * parse a pacing description
+	 * @param spec "none" or comma separated list of rate=bytes/s, chunk=bytes, gap=ms
+	 * @throws IllegalArgumentException if spec is malformed
+	 */
+	public static Pacing parse(String spec) throws IllegalArgumentException {
+		spec = spec.trim();
+		if ("none".equals(spec)) {
+			return NONE;
+		}
+		int rate = 0, chunk = 0, gap = 0;
+		for (String item : spec.split("\\s*,\\s*")) {
+			int equal = item.indexOf('=');
+			if (equal == -1) {
+				throw new IllegalArgumentException("unknown pacing item '" + item + "'");
+			}
+			String key = item.substring(0, equal);
+			int value;
+			try {
+				value = Integer.parseInt(item.substring(equal + 1));
+			} catch(NumberFormatException e) {
+				throw new IllegalArgumentException("pacing item '" + key + "' needs an integer value");
+			}
+			switch(key) {
+			case "rate":
+				rate = value;
+				break;
+			case "chunk":
+				chunk = value;
+				break;
+			case "gap":
+				gap = value;
+				break;
+			default:
+				throw new IllegalArgumentException("unknown pacing item '" + key + "'");
+			}
+		}
+		return new Pacing(rate, chunk, gap);
+	}
+
+	@Override
+	public String toString() {
+		if (isNone()) {
+			return "none";
+		}
+		return "rate=" + rate + ",chunk=" + chunk + ",gap=" + gap;
+	}
+}
@@ -1,40 +1,110 @@
 package pif.arduino.tools;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  * Simple class to execute an external command and output its stdout/stderr in formatted way
+ *
+ * Each stream is pumped by its own thread, blocking on read, and lines are
+ * written to output as they come, thus stdout and stderr are merged in
+ * arrival order, and nothing spins while process runs.
+ * Once process ended, pumps are given {@link #PUMP_TIMEOUT} ms to forward
+ * what remains, then streams are closed : a child process left running in
+ * background may keep them open.
  * @author pif
  */
 public class ProgramLauncher {
-	protected String command;
-	protected String outPrefix = "OUT ", outSuffix = "\n";
-	protected String errPrefix = "OUT ", errSuffix = "\n";
+	Logger logger = LogManager.getLogger();
+
+	// max delay to forward remaining output after process end, in ms
+	public static final int PUMP_TIMEOUT = 1000;
+
+	protected List<String> command;
+	protected String outPrefix = LineDecorator.Color.GREEN, outSuffix = LineDecorator.Color.RESET;
+	protected String errPrefix = LineDecorator.Color.RED, errSuffix = LineDecorator.Color.RESET;
+
+	protected volatile Process process = null;
+	// set once process streams are closed by run(), pumps then stop silently
+	protected volatile boolean closing = false;
 
-	protected Process process = null;
+	/**
+	 * prepare command to launch
+	 * @param command program and its arguments, arguments may contain spaces
+	 */
+	public ProgramLauncher(List<String> command) {
+		this.command = new ArrayList<String>(command);
+	}
 
 	/**
 	 * prepare command to launch
-	 * @param command
+	 * @param command command line, split on spaces excepted between quotes (see {@link #splitCommand(String)})
 	 */
 	public ProgramLauncher(String command) {
-		this.command = command;
+		this(splitCommand(command));
+	}
+
+	/**
+	 * split a command line into arguments, on spaces excepted between double or single quotes.
+	 * Quotes are removed
+	 */
+	public static List<String> splitCommand(String line) {
+		List<String> result = new ArrayList<String>();
+		StringBuilder current = new StringBuilder();
+		boolean inArgument = false;
+		char quote = 0;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				} else {
+					current.append(c);
+				}
+			} else if (c == '"' || c == '\'') {
+				quote = c;
+				inArgument = true;
+			} else if (Character.isWhitespace(c)) {
+				if (inArgument) {
+					result.add(current.toString());
+					current.setLength(0);
+					inArgument = false;
+				}
+			} else {
+				current.append(c);
+				inArgument = true;
+			}
+		}
+		if (inArgument) {
+			result.add(current.toString());
+		}
+		return result;
+	}
+
+	public List<String> getCommand() {
+		return command;
 	}
 
 	/**
-	 * set prefix/suffix for stdout lines
+	 * set prefix/suffix for stdout lines, green color by default
 	 * @param prefix
-	 * @param suffix
+	 * @param suffix put before end of line
 	 */
 	public void setOutMask(String prefix, String suffix) {
 		outPrefix = prefix;
 		outSuffix = suffix;
 	}
 	/**
-	 * set prefix/suffix for stderr lines
+	 * set prefix/suffix for stderr lines, red color by default
 	 * @param prefix
-	 * @param suffix
+	 * @param suffix put before end of line
 	 */
 	public void setErrMask(String prefix, String suffix) {
 		errPrefix = prefix;
@@ -48,34 +118,86 @@ public class ProgramLauncher {
 	 * @throws IOException
 	 */
 	public int run(OutputStream out) throws IOException {
-		Process process = Runtime.getRuntime().exec(command);
-		OutputRenderer pout = new OutputRenderer(process.getInputStream(), out, "\033[32m", "\033[0m\n");
-		OutputRenderer perr = new OutputRenderer(process.getErrorStream(), out, "\033[91m", "\033[0m\n");
+		closing = false;
+		process = new ProcessBuilder(command).start();
+		// process doesn't expect any input
+		process.getOutputStream().close();
+		InputStream stdout = process.getInputStream();
+		InputStream stderr = process.getErrorStream();
+		Thread pout = pump(stdout,
+				new LineSplitter(out, new LineDecorator.Mask(outPrefix, outSuffix)), "stdout pump");
+		Thread perr = pump(stderr,
+				new LineSplitter(out, new LineDecorator.Mask(errPrefix, errSuffix)), "stderr pump");
 
-		while(process.isAlive()) {
-			pout.forward();
-			perr.forward();
+		int result;
+		try {
+			result = process.waitFor();
+			// let pumps forward what remains in pipes
+			pout.join(PUMP_TIMEOUT);
+			perr.join(PUMP_TIMEOUT);
+			if (pout.isAlive() || perr.isAlive()) {
+				logger.debug(command.get(0) + " output still open after its end, closing it");
+			}
+		} catch (InterruptedException e) {
+			process.destroy();
+			throw new IOException("interrupted while waiting for " + command.get(0), e);
+		} finally {
+			// unblock pumps, whatever holds pipes
+			closing = true;
+			close(stdout);
+			close(stderr);
+			process = null;
 		}
-		pout.forward();
-		pout.flush();
-		perr.forward();
-		perr.flush();
-
-		int result =  process.exitValue();
-		process = null;
+		out.flush();
 		return result;
 	}
 
+	protected void close(InputStream input) {
+		try {
+			input.close();
+		} catch (IOException e) {
+			logger.debug("Couldn't close program output", e);
+		}
+	}
+
+	/**
+	 * start a thread forwarding a stream until its end
+	 */
+	protected Thread pump(final InputStream input, final LineSplitter splitter, String name) {
+		Thread thread = new Thread(name) {
+			public void run() {
+				try {
+					while (splitter.forward(input)) {
+					}
+					splitter.flush();
+				} catch (IOException e) {
+					if (!closing) {
+						logger.error("Couldn't forward program output", e);
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
 	/**
 	 * Wait for the process end
 	 */
 	public void waitFor() {
-		if (process != null) {
+		Process current = process;
+		if (current != null) {
 			try {
-				process.waitFor();
+				current.waitFor();
 			} catch (InterruptedException e) {
 				// ignored
 			}
 		}
 	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(command.toArray());
+	}
 }
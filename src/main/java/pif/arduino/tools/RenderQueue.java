@@ -0,0 +1,247 @@
+package pif.arduino.tools;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Bounded queue of data chunks between incoming data and display, with a
+ * dedicated render thread, thus a slow terminal doesn't stall ingestion.
+ *
+ * When queue is full, policy decides what to do :
+ * - BLOCK : caller waits for room in queue (nothing is lost, but ingestion may stall)
+ * - DROP : oldest chunk is dropped silently
+ * - SUMMARIZE : oldest chunk is dropped, and renderer is told how many bytes were skipped
+ *
+ * Chunk buffers are allocated once and reused, data is copied into them.
+ * @author pif
+ */
+public class RenderQueue {
+	private static Logger logger = LogManager.getLogger();
+
+	public enum Policy {
+		BLOCK, DROP, SUMMARIZE;
+
+		public static Policy parse(String name) throws IllegalArgumentException {
+			switch(name) {
+			case "block": return BLOCK;
+			case "drop": return DROP;
+			case "summarize": return SUMMARIZE;
+			default:
+				throw new IllegalArgumentException("bad render policy '" + name + "', expected block, drop or summarize");
+			}
+		}
+
+		@Override
+		public String toString() {
+			return name().toLowerCase();
+		}
+	}
+
+	public interface Renderer {
+		/**
+		 * called from render thread for each chunk
+		 * @param tag value given with chunk when submitted
+		 */
+		void render(byte[] data, int length, int tag);
+
+		/**
+		 * called from render thread before next chunk when some were dropped
+		 * with SUMMARIZE policy
+		 * @param skipped number of bytes which were not rendered
+		 */
+		void summarize(long skipped);
+	}
+
+	public static final int DEFAULT_CAPACITY = 64;
+
+	protected Renderer renderer;
+	protected Policy policy;
+
+	protected final ReentrantLock lock = new ReentrantLock();
+	protected final Condition notEmpty = lock.newCondition();
+	protected final Condition notFull = lock.newCondition();
+
+	protected byte[][] slots;
+	protected int[] lengths;
+	protected int[] tags;
+	// index of oldest chunk, and number of queued ones
+	protected int head = 0, count = 0;
+	// buffer owned by render thread, swapped with oldest slot when taken
+	protected byte[] rendering = new byte[0];
+	// true while render thread renders a chunk, to know when queue is drained
+	protected boolean busy = false;
+
+	// bytes dropped since last summary
+	protected long pendingSummary = 0;
+
+	// statistics
+	protected volatile long renderedBytes = 0;
+	protected volatile long droppedBytes = 0;
+	protected volatile long summarizedBytes = 0;
+	protected volatile int maxDepth = 0;
+
+	protected Thread thread;
+
+	public RenderQueue(Renderer renderer, Policy policy, int capacity) {
+		this.renderer = renderer;
+		this.policy = policy;
+		slots = new byte[capacity][];
+		for (int i = 0; i < capacity; i++) {
+			slots[i] = new byte[0];
+		}
+		lengths = new int[capacity];
+		tags = new int[capacity];
+
+		thread = new Thread("render") {
+			public void run() {
+				renderLoop();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	public int getCapacity() {
+		return slots.length;
+	}
+
+	/**
+	 * queue a copy of data to render
+	 */
+	public void submit(byte[] data, int length) {
+		submit(data, length, 0);
+	}
+
+	/**
+	 * queue a copy of data to render
+	 * @param tag value handed to renderer with this chunk, to tell how it must be rendered
+	 */
+	public void submit(byte[] data, int length, int tag) {
+		lock.lock();
+		try {
+			while (count == slots.length) {
+				if (policy == Policy.BLOCK) {
+					notFull.awaitUninterruptibly();
+					continue;
+				}
+				// drop oldest chunk
+				droppedBytes += lengths[head];
+				if (policy == Policy.SUMMARIZE) {
+					summarizedBytes += lengths[head];
+					pendingSummary += lengths[head];
+				}
+				head = (head + 1) % slots.length;
+				count--;
+			}
+			int tail = (head + count) % slots.length;
+			if (slots[tail].length < length) {
+				slots[tail] = new byte[length];
+			}
+			System.arraycopy(data, 0, slots[tail], 0, length);
+			lengths[tail] = length;
+			tags[tail] = tag;
+			count++;
+			if (count > maxDepth) {
+				maxDepth = count;
+			}
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	protected void renderLoop() {
+		for (;;) {
+			int length, tag;
+			long summary;
+			lock.lock();
+			try {
+				busy = false;
+				notFull.signalAll();
+				while (count == 0) {
+					notEmpty.awaitUninterruptibly();
+				}
+				// take oldest slot and give back previous rendering buffer in place
+				byte[] taken = slots[head];
+				slots[head] = rendering;
+				rendering = taken;
+				length = lengths[head];
+				tag = tags[head];
+				head = (head + 1) % slots.length;
+				count--;
+				summary = pendingSummary;
+				pendingSummary = 0;
+				busy = true;
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			try {
+				if (summary != 0) {
+					renderer.summarize(summary);
+				}
+				renderer.render(rendering, length, tag);
+			} catch (RuntimeException e) {
+				// never let render thread die
+				logger.error("Rendering failed", e);
+			}
+			renderedBytes += length;
+		}
+	}
+
+	/**
+	 * wait until all queued chunks are rendered
+	 * @param timeout max delay in ms
+	 * @return false if timeout expired before
+	 */
+	public boolean drain(long timeout) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		lock.lock();
+		try {
+			while (count != 0 || busy) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return false;
+				}
+				try {
+					notFull.awaitNanos(remaining);
+				} catch (InterruptedException e) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getRenderedBytes() {
+		return renderedBytes;
+	}
+
+	/**
+	 * @return number of bytes never rendered, whatever policy
+	 */
+	public long getDroppedBytes() {
+		return droppedBytes;
+	}
+
+	/**
+	 * @return part of dropped bytes reported to renderer with SUMMARIZE policy
+	 */
+	public long getSummarizedBytes() {
+		return summarizedBytes;
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+}
@@ -0,0 +1,170 @@
+package pif.arduino.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Stand-in for a serial port which replays incoming data of a session
+ * recorded by {@link SessionRecorder}, for url like replay://file?speed=10
+ *
+ * Received chunks are delivered as they were recorded, at original timing,
+ * scaled by speed, or as fast as possible (speed=max). Outgoing data, as
+ * well as chunks sent during recorded session, are ignored.
+ * Chunks are copied into a reusable buffer by a dedicated thread.
+ * @author pif
+ */
+public class ReplayTransport implements SerialTransport {
+	Logger logger = LogManager.getLogger();
+
+	public static final String SCHEME = "replay://";
+
+	protected final File capture;
+	// 0 for as fast as possible
+	protected final double speed;
+
+	protected CaptureReader reader;
+	protected Thread thread;
+	protected volatile boolean finished = false;
+	protected volatile boolean closed = false;
+
+	// statistics
+	protected volatile long replayedChunks = 0;
+	protected volatile long replayedBytes = 0;
+
+	/**
+	 * @param capture base name of recorded session
+	 * @param speed 1 for original timing, 10 for 10 times faster ... 0 for as fast as possible
+	 */
+	public ReplayTransport(File capture, double speed) {
+		this.capture = capture;
+		this.speed = speed;
+	}
+
+	/**
+	 * @param url replay://file optionally followed by ?speed=factor or ?speed=max
+	 */
+	public static ReplayTransport parse(String url) throws MySerialException {
+		String path = url.substring(SCHEME.length());
+		double speed = 1;
+		int query = path.indexOf('?');
+		if (query != -1) {
+			String item = path.substring(query + 1);
+			path = path.substring(0, query);
+			if (!item.startsWith("speed=")) {
+				throw new MySerialException(MessageFormat.format("Unknown replay parameter ''{0}''.", item));
+			}
+			speed = parseSpeed(item.substring(6));
+		}
+		return new ReplayTransport(new File(path), speed);
+	}
+
+	/**
+	 * @param value factor, or "max" for as fast as possible
+	 */
+	public static double parseSpeed(String value) throws MySerialException {
+		if ("max".equals(value)) {
+			return 0;
+		}
+		try {
+			double speed = Double.parseDouble(value);
+			if (speed <= 0) {
+				throw new NumberFormatException();
+			}
+			return speed;
+		} catch (NumberFormatException e) {
+			throw new MySerialException(MessageFormat.format("Bad replay speed ''{0}''.", value));
+		}
+	}
+
+	@Override
+	public void open(final Receiver receiver) throws MySerialException {
+		try {
+			reader = new CaptureReader(capture);
+		} catch (IOException e) {
+			throw new MySerialException(MessageFormat.format("Can''t open capture ''{0}''.", capture), e);
+		}
+		thread = new Thread("replay") {
+			public void run() {
+				try {
+					replay(receiver);
+				} catch (IOException e) {
+					logger.error("Error replaying " + capture, e);
+				} catch (InterruptedException e) {
+					// closed
+				}
+				reader.close();
+				finished = true;
+				logger.debug("end of replay");
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	protected void replay(Receiver receiver) throws IOException, InterruptedException {
+		byte[] buffer = new byte[4096];
+		long start = System.nanoTime();
+		while (!closed && reader.next()) {
+			if (reader.getDirection() != SessionRecorder.RX) {
+				continue;
+			}
+			int length = reader.getLength();
+			if (length > buffer.length) {
+				buffer = new byte[Math.max(length, buffer.length * 2)];
+			}
+			reader.read(buffer, 0);
+			if (speed != 0) {
+				long wait = start + (long)(reader.getTime() / speed) - System.nanoTime();
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+			}
+			receiver.onReceive(buffer, 0, length);
+			replayedChunks++;
+			replayedBytes += length;
+		}
+	}
+
+	/**
+	 * @return true once whole session was replayed
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	public long getReplayedChunks() {
+		return replayedChunks;
+	}
+
+	public long getReplayedBytes() {
+		return replayedBytes;
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) {
+		// nobody listens
+	}
+
+	@Override
+	public void setDTR(boolean state) {
+		logger.debug("DTR ignored on replay");
+	}
+
+	@Override
+	public void setRTS(boolean state) {
+		logger.debug("RTS ignored on replay");
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+}
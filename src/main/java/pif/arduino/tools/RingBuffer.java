@@ -0,0 +1,93 @@
+package pif.arduino.tools;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single producer / single consumer byte ring buffer.
+ *
+ * Producer and consumer may run in different threads without any lock :
+ * head is only moved by producer, tail only by consumer, and each one
+ * publishes its position after having copied data.
+ * Head is published with a volatile write, not an ordered one : a producer
+ * reading consumer state right after write() (to wake it up) must not see it
+ * before its data are visible, else both sides may miss each other.
+ *
+ * @author pif
+ */
+public class RingBuffer {
+	protected final byte[] buffer;
+	protected final int mask;
+
+	// next position to write, moved by producer only
+	protected final AtomicLong head = new AtomicLong();
+	// next position to read, moved by consumer only
+	protected final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * @param capacity minimum capacity, rounded up to next power of 2
+	 */
+	public RingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		buffer = new byte[size];
+		mask = size - 1;
+	}
+
+	public int capacity() {
+		return buffer.length;
+	}
+
+	/**
+	 * @return number of bytes available to read
+	 */
+	public int size() {
+		return (int)(head.get() - tail.get());
+	}
+
+	/**
+	 * @return number of bytes which can be written without overflow
+	 */
+	public int free() {
+		return buffer.length - size();
+	}
+
+	/**
+	 * Producer side : copy as much bytes as possible from src
+	 * @return number of bytes actually written, less than length if buffer is full
+	 */
+	public int write(byte[] src, int offset, int length) {
+		long h = head.get();
+		int count = Math.min(length, buffer.length - (int)(h - tail.get()));
+		if (count <= 0) {
+			return 0;
+		}
+		int from = (int)h & mask;
+		int first = Math.min(count, buffer.length - from);
+		System.arraycopy(src, offset, buffer, from, first);
+		if (first < count) {
+			System.arraycopy(src, offset + first, buffer, 0, count - first);
+		}
+		// full fence, see class comment
+		head.set(h + count);
+		return count;
+	}
+
+	/**
+	 * Consumer side : copy as much bytes as available into dst
+	 * @return number of bytes actually read, 0 if buffer is empty
+	 */
+	public int read(byte[] dst, int offset, int length) {
+		long t = tail.get();
+		int count = Math.min(length, (int)(head.get() - t));
+		if (count <= 0) {
+			return 0;
+		}
+		int from = (int)t & mask;
+		int first = Math.min(count, buffer.length - from);
+		System.arraycopy(buffer, from, dst, offset, first);
+		if (first < count) {
+			System.arraycopy(buffer, 0, dst, offset + first, count - first);
+		}
+		tail.lazySet(t + count);
+		return count;
+	}
+}
@@ -0,0 +1,34 @@
+package pif.arduino.tools;
+
+import java.io.IOException;
+
+/**
+ * Link beneath {@link MySerial} : a real serial port, or a stand-in to test
+ * or benchmark console pipeline without any board.
+ * @author pif
+ */
+public interface SerialTransport {
+	public interface Receiver {
+		/**
+		 * called with bytes coming from link.
+		 * Caution : data array may be reused by next call
+		 */
+		void onReceive(byte[] data, int offset, int length);
+	}
+
+	/**
+	 * open link and start to hand incoming bytes to receiver
+	 */
+	void open(Receiver receiver) throws MySerialException;
+
+	/**
+	 * send bytes. Called from a single writer thread
+	 */
+	void write(byte[] data, int offset, int length) throws IOException;
+
+	void setDTR(boolean state) throws IOException;
+
+	void setRTS(boolean state) throws IOException;
+
+	void close() throws IOException;
+}
@@ -0,0 +1,306 @@
+package pif.arduino.tools;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Asynchronous writer : callers queue bytes into a bounded buffer, and a
+ * dedicated thread sends them to the port, coalescing small writes into
+ * larger ones. Ordering is preserved.
+ *
+ * When buffer is full, callers are blocked (or get false with a timeout),
+ * thus fast producers are slowed down to port throughput.
+ *
+ * Writes may be paced (see {@link Pacing}) : a virtual clock, advanced by the
+ * time each chunk needs at configured rate, delays next chunk, like a token
+ * bucket holding one chunk.
+ * @author pif
+ */
+public class SerialWriter {
+	Logger logger = LogManager.getLogger();
+
+	public interface Sink {
+		/**
+		 * actually send data. Called from writer thread only
+		 */
+		void send(byte[] data, int length) throws IOException;
+	}
+
+	public static final int DEFAULT_CAPACITY = 16 * 1024;
+	public static final int MAX_BATCH = 4096;
+
+	protected Sink sink;
+	protected RingBuffer ring;
+	protected byte[] batch = new byte[MAX_BATCH];
+
+	protected final ReentrantLock lock = new ReentrantLock();
+	protected final Condition notEmpty = lock.newCondition();
+	protected final Condition notFull = lock.newCondition();
+	// true while writer thread sends a batch, to know when queue is drained
+	protected boolean sending = false;
+	protected volatile boolean running = true;
+
+	// enqueue time of oldest byte not sent yet
+	protected long oldestEnqueue;
+
+	protected Thread thread;
+
+	protected volatile Pacing pacing = Pacing.NONE;
+	// earliest time next chunk may be sent, when pacing has a rate and a chunk was already paced
+	protected boolean paced = false;
+	protected long nextSend;
+
+	// statistics
+	protected volatile long batches = 0;
+	protected volatile long writtenBytes = 0;
+	protected volatile int maxDepth = 0;
+	protected volatile long totalLatency = 0;
+	protected volatile long maxLatency = 0;
+
+	public SerialWriter(Sink sink) {
+		this(sink, DEFAULT_CAPACITY);
+	}
+
+	public SerialWriter(Sink sink, int capacity) {
+		this.sink = sink;
+		ring = new RingBuffer(capacity);
+		thread = new Thread("serial writer") {
+			public void run() {
+				writeLoop();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * queue data, waiting for room in buffer as long as needed
+	 */
+	public void write(byte[] data, int offset, int length) {
+		write(data, offset, length, -1);
+	}
+
+	/**
+	 * queue data, waiting at most timeout ms for room in buffer.
+	 * Data larger than buffer capacity are queued by parts, thus may be partially queued
+	 * if timeout expires.
+	 * @param timeout max delay in ms, negative to wait forever
+	 * @return false if timeout expired or writer is closed before all data could be queued
+	 */
+	public boolean write(byte[] data, int offset, int length, long timeout) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		lock.lock();
+		try {
+			while (length > 0) {
+				if (!running) {
+					return false;
+				}
+				// don't split data which fits in buffer
+				int needed = Math.min(length, ring.capacity());
+				if (ring.free() < needed) {
+					if (timeout < 0) {
+						notFull.awaitUninterruptibly();
+					} else {
+						long remaining = deadline - System.nanoTime();
+						if (remaining <= 0) {
+							return false;
+						}
+						try {
+							notFull.awaitNanos(remaining);
+						} catch (InterruptedException e) {
+							return false;
+						}
+					}
+					continue;
+				}
+				if (ring.size() == 0) {
+					oldestEnqueue = System.nanoTime();
+				}
+				int written = ring.write(data, offset, needed);
+				offset += written;
+				length -= written;
+				if (ring.size() > maxDepth) {
+					maxDepth = ring.size();
+				}
+				notEmpty.signal();
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	protected void writeLoop() {
+		for (;;) {
+			int length;
+			long enqueued;
+			lock.lock();
+			try {
+				sending = false;
+				notFull.signalAll();
+				while (ring.size() == 0) {
+					if (!running) {
+						return;
+					}
+					notEmpty.awaitUninterruptibly();
+				}
+				Pacing current = pacing;
+				int max = current.getChunk() == 0 ? batch.length : Math.min(current.getChunk(), batch.length);
+				length = ring.read(batch, 0, max);
+				enqueued = oldestEnqueue;
+				// remaining bytes were queued after these ones
+				oldestEnqueue = System.nanoTime();
+				sending = true;
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			pace(length);
+			try {
+				sink.send(batch, length);
+			} catch (IOException e) {
+				logger.error("Couldn't write to port", e);
+			}
+			if (pacing.getGap() != 0) {
+				sleepNanos(TimeUnit.MILLISECONDS.toNanos(pacing.getGap()));
+			}
+			long latency = System.nanoTime() - enqueued;
+			batches++;
+			writtenBytes += length;
+			totalLatency += latency;
+			if (latency > maxLatency) {
+				maxLatency = latency;
+			}
+		}
+	}
+
+	/**
+	 * wait until a chunk of given length may be sent according to pacing rate
+	 */
+	protected void pace(int length) {
+		int rate = pacing.getRate();
+		if (rate == 0) {
+			return;
+		}
+		long now = System.nanoTime();
+		// nanoTime may be negative : compare differences, never to a sentinel value
+		if (!paced || nextSend - now < 0) {
+			// idle for a while : no credit accumulated beyond current chunk
+			nextSend = now;
+		} else {
+			sleepNanos(nextSend - now);
+		}
+		nextSend += TimeUnit.SECONDS.toNanos(length) / rate;
+		paced = true;
+	}
+
+	protected static void sleepNanos(long nanos) {
+		long deadline = System.nanoTime() + nanos;
+		while (nanos > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(nanos);
+			} catch (InterruptedException e) {
+				return;
+			}
+			nanos = deadline - System.nanoTime();
+		}
+	}
+
+	public Pacing getPacing() {
+		return pacing;
+	}
+
+	/**
+	 * change pacing, taken in account at next chunk
+	 */
+	public void setPacing(Pacing pacing) {
+		this.pacing = pacing;
+	}
+
+	/**
+	 * wait until all queued data are sent
+	 * @param timeout max delay in ms
+	 * @return false if timeout expired before
+	 */
+	public boolean drain(long timeout) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		lock.lock();
+		try {
+			while (ring.size() != 0 || sending) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0 || !thread.isAlive()) {
+					return false;
+				}
+				try {
+					notFull.awaitNanos(remaining);
+				} catch (InterruptedException e) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * stop writer thread once queued data are sent
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			running = false;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * helper for sinks which need an array of exact size
+	 */
+	public static byte[] exactCopy(byte[] data, int length) {
+		return (data.length == length) ? data : Arrays.copyOf(data, length);
+	}
+
+	/**
+	 * @return number of bytes waiting to be sent
+	 */
+	public int getQueueDepth() {
+		return ring.size();
+	}
+
+	public int getMaxQueueDepth() {
+		return maxDepth;
+	}
+
+	public long getBatchCount() {
+		return batches;
+	}
+
+	public long getWrittenBytes() {
+		return writtenBytes;
+	}
+
+	/**
+	 * @return average delay between queuing of oldest byte of a batch and end of its write, in µs
+	 */
+	public long getAverageLatency() {
+		long count = batches;
+		return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalLatency / count);
+	}
+
+	/**
+	 * @return max delay between queuing of oldest byte of a batch and end of its write, in µs
+	 */
+	public long getMaxLatency() {
+		return TimeUnit.NANOSECONDS.toMicros(maxLatency);
+	}
+}
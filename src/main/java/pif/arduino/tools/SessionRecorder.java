@@ -0,0 +1,273 @@
+package pif.arduino.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Record every chunk received from or sent to a port, with a timestamp,
+ * into memory mapped append only files.
+ *
+ * A session is split into segments named base.000, base.001 ... of at most
+ * segmentSize bytes. Each segment begins with a header :
+ * - magic "ARDREC01"
+ * - session start time (ms since epoch)
+ * - end of valid data in this segment (updated after each record)
+ * - segment index
+ * followed by records :
+ * - length of data (int)
+ * - time since session start (long, ns)
+ * - direction (byte, RX or TX)
+ * - data
+ * All values are little endian.
+ *
+ * Recording a chunk is a copy into mapped memory, next segment being mapped
+ * in background before current one is full. Full segments are flushed and
+ * closed in background too, thus port threads never wait for disk : if next
+ * segment isn't ready when current one is full, data are dropped and counted.
+ * @author pif
+ */
+public class SessionRecorder {
+	private static Logger logger = LogManager.getLogger();
+
+	public static final byte[] MAGIC = "ARDREC01".getBytes();
+	public static final int HEADER_SIZE = 32;
+	public static final int POSITION_OFFSET = 16;
+	public static final int RECORD_HEADER_SIZE = 13;
+
+	public static final byte RX = 0;
+	public static final byte TX = 1;
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	protected final File base;
+	protected final int segmentSize;
+	protected final long startMillis;
+	protected final long startNanos;
+
+	protected int segmentIndex = -1;
+	protected RandomAccessFile segmentFile;
+	protected MappedByteBuffer segment;
+
+	// next segment, prepared in background, and full ones closed there
+	protected final ExecutorService preparer;
+	protected Future<Object[]> nextSegment = null;
+
+	protected boolean closed = false;
+	// next segment couldn't be created, nothing more is recorded until close()
+	protected boolean failed = false;
+
+	// statistics
+	protected volatile long records = 0;
+	protected volatile long recordedBytes = 0;
+	protected volatile long droppedBytes = 0;
+
+	/**
+	 * @param base base file name, segments are named base.000, base.001 ...
+	 */
+	public SessionRecorder(File base) throws IOException {
+		this(base, DEFAULT_SEGMENT_SIZE);
+	}
+
+	public SessionRecorder(File base, int segmentSize) throws IOException {
+		if (segmentSize < HEADER_SIZE + RECORD_HEADER_SIZE + 1024) {
+			throw new IllegalArgumentException("segment size too small");
+		}
+		this.base = base;
+		this.segmentSize = segmentSize;
+		startMillis = System.currentTimeMillis();
+		startNanos = System.nanoTime();
+		preparer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "recorder segments");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		Object[] first = openSegment(0);
+		useSegment(0, first);
+	}
+
+	public static File segmentFile(File base, int index) {
+		return new File(base.getPath() + String.format(".%03d", index));
+	}
+
+	public File getBase() {
+		return base;
+	}
+
+	/**
+	 * create and map a segment file
+	 * @return file and mapped buffer
+	 */
+	protected Object[] openSegment(int index) throws IOException {
+		File file = segmentFile(base, index);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put(MAGIC);
+		buffer.putLong(startMillis);
+		buffer.putLong(HEADER_SIZE);
+		buffer.putInt(index);
+		buffer.position(HEADER_SIZE);
+		return new Object[] { raf, buffer };
+	}
+
+	protected void useSegment(int index, Object[] opened) {
+		segmentIndex = index;
+		segmentFile = (RandomAccessFile)opened[0];
+		segment = (MappedByteBuffer)opened[1];
+		nextSegment = null;
+	}
+
+	/**
+	 * record a chunk
+	 * @param direction RX or TX
+	 */
+	public synchronized void record(byte direction, byte[] data, int offset, int length) {
+		if (closed) {
+			return;
+		}
+		if (failed) {
+			droppedBytes += length;
+			return;
+		}
+		long time = System.nanoTime() - startNanos;
+		while (length > 0) {
+			if (segment.remaining() < RECORD_HEADER_SIZE + 1) {
+				if (!roll()) {
+					droppedBytes += length;
+					return;
+				}
+			}
+			// split chunks larger than room left in segment
+			int count = Math.min(length, segment.remaining() - RECORD_HEADER_SIZE);
+			segment.putInt(count);
+			segment.putLong(time);
+			segment.put(direction);
+			segment.put(data, offset, count);
+			segment.putLong(POSITION_OFFSET, segment.position());
+			offset += count;
+			length -= count;
+			records++;
+			recordedBytes += count;
+		}
+		if (segment.position() > segmentSize / 4 * 3) {
+			prepareNext();
+		}
+	}
+
+	protected void prepareNext() {
+		if (nextSegment != null) {
+			return;
+		}
+		final int index = segmentIndex + 1;
+		nextSegment = preparer.submit(new Callable<Object[]>() {
+			public Object[] call() throws IOException {
+				return openSegment(index);
+			}
+		});
+	}
+
+	/**
+	 * switch to next segment if it's ready, current one being closed in background
+	 * @return false if next segment isn't ready yet, or couldn't be created (recording is then stopped)
+	 */
+	protected boolean roll() {
+		prepareNext();
+		if (!nextSegment.isDone()) {
+			return false;
+		}
+		Object[] next;
+		try {
+			next = nextSegment.get();
+		} catch (Exception e) {
+			logger.error("Couldn't create next record segment, recording stopped", e);
+			// current segment is still closed by close()
+			failed = true;
+			return false;
+		}
+		final RandomAccessFile fullFile = segmentFile;
+		final MappedByteBuffer full = segment;
+		useSegment(segmentIndex + 1, next);
+		preparer.execute(new Runnable() {
+			public void run() {
+				closeSegment(fullFile, full);
+			}
+		});
+		return true;
+	}
+
+	protected static void closeSegment(RandomAccessFile file, MappedByteBuffer buffer) {
+		int end = buffer.position();
+		buffer.force();
+		try {
+			// drop unused part of file
+			file.setLength(end);
+		} catch (IOException e) {
+			// mapped files can't be truncated on some systems, header gives real end anyway
+		}
+		try {
+			file.close();
+		} catch (IOException e) {
+			logger.warn("Couldn't close record segment", e);
+		}
+	}
+
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		closeSegment(segmentFile, segment);
+		if (nextSegment != null) {
+			// discard prepared segment
+			try {
+				Object[] next = nextSegment.get();
+				((RandomAccessFile)next[0]).close();
+				segmentFile(base, segmentIndex + 1).delete();
+			} catch (Exception e) {
+				// ignored
+			}
+		}
+		preparer.shutdown();
+		try {
+			// let previous segments be flushed
+			preparer.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			// ignored
+		}
+	}
+
+	public long getRecords() {
+		return records;
+	}
+
+	public long getRecordedBytes() {
+		return recordedBytes;
+	}
+
+	/**
+	 * @return number of bytes not recorded because next segment wasn't ready, or couldn't be created
+	 */
+	public long getDroppedBytes() {
+		return droppedBytes;
+	}
+
+	public synchronized int getSegmentCount() {
+		return segmentIndex + 1;
+	}
+}
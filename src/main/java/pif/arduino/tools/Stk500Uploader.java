@@ -0,0 +1,358 @@
+package pif.arduino.tools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Upload an image to an AVR board running a STK500v1 bootloader, like
+ * Optiboot, thru an open {@link MySerial}, without any external program.
+ *
+ * During upload, incoming bytes are diverted from console (see
+ * {@link MySerial#setDivert(SerialTransport.Receiver)}), thus port stays open
+ * and sketch output is displayed as soon as upload ends.
+ * Board is reset by a DTR/RTS pulse, then bootloader is synchronized.
+ *
+ * Thru USB serial adapters, upload time is mostly round trips : address load
+ * and page command are sent in a single write, and their replies awaited
+ * together. Bootloader UART can't hold more than a few bytes while it writes
+ * flash, thus a page isn't sent before previous one is acknowledged.
+ * Pages identical to previous image (see {@link ImageCache}) may be skipped.
+ * Verify reads every page back, skipped ones included, and rewrites those
+ * which differ.
+ * @author pif
+ */
+public class Stk500Uploader {
+	private static Logger logger = LogManager.getLogger();
+
+	public static final int DEFAULT_BAUDRATE = 115200;
+	public static final int DEFAULT_PAGE_SIZE = 128;
+	// word addresses on 16 bits, extended addressing isn't handled
+	public static final int MAX_SIZE = 128 * 1024;
+
+	// STK500v1 protocol
+	static final byte STK_OK = 0x10;
+	static final byte STK_INSYNC = 0x14;
+	static final byte CRC_EOP = 0x20;
+	static final byte STK_GET_SYNC = 0x30;
+	static final byte STK_ENTER_PROGMODE = 0x50;
+	static final byte STK_LEAVE_PROGMODE = 0x51;
+	static final byte STK_LOAD_ADDRESS = 0x55;
+	static final byte STK_PROG_PAGE = 0x64;
+	static final byte STK_READ_PAGE = 0x74;
+	static final byte STK_READ_SIGN = 0x75;
+	static final byte MEMORY_FLASH = 'F';
+
+	// reset pulse, like avrdude arduino programmer, in ms
+	static final int RESET_LOW = 250;
+	static final int RESET_HIGH = 50;
+	static final int SYNC_ATTEMPTS = 10;
+	static final int SYNC_TIMEOUT = 200;
+	static final int REPLY_TIMEOUT = 1000;
+
+	protected final MySerial serial;
+	protected final RingBuffer input = new RingBuffer(4096);
+	protected volatile Thread waiter = null;
+	protected final SerialTransport.Receiver receiver = new SerialTransport.Receiver() {
+		public void onReceive(byte[] data, int offset, int length) {
+			input.write(data, offset, length);
+			Thread current = waiter;
+			if (current != null) {
+				LockSupport.unpark(current);
+			}
+		}
+	};
+
+	protected int pageSize = DEFAULT_PAGE_SIZE;
+	protected boolean verify = true;
+	protected boolean pipelined = true;
+	protected byte[] previous = null;
+
+	// statistics, times in ms
+	protected byte[] signature = null;
+	protected long syncTime = 0;
+	protected long writeTime = 0;
+	protected long verifyTime = 0;
+	protected int writtenPages = 0;
+	protected int skippedPages = 0;
+	protected int rewrittenPages = 0;
+
+	public Stk500Uploader(MySerial serial) {
+		this.serial = serial;
+	}
+
+	/**
+	 * @param pageSize flash page size in bytes, 128 for ATmega328P
+	 */
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	public void setVerify(boolean verify) {
+		this.verify = verify;
+	}
+
+	/**
+	 * @param pipelined false to wait address load reply before sending page command
+	 */
+	public void setPipelined(boolean pipelined) {
+		this.pipelined = pipelined;
+	}
+
+	/**
+	 * @param previous image flashed last time on this board, whose identical pages are skipped. null to write all
+	 */
+	public void setPrevious(byte[] previous) {
+		this.previous = previous;
+	}
+
+	/**
+	 * reset board, write image, verify it if asked, and leave bootloader
+	 */
+	public void upload(IntelHex image) throws IOException {
+		if (image.getLength() > MAX_SIZE) {
+			throw new IOException("image of " + image.getLength() + " bytes, extended addressing isn't handled");
+		}
+		SerialWriter writer = serial.getWriter();
+		Pacing pacing = writer.getPacing();
+		writer.setPacing(Pacing.NONE);
+		waiter = Thread.currentThread();
+		serial.setDivert(receiver);
+		try {
+			long start = System.currentTimeMillis();
+			reset();
+			sync();
+			signature = command(new byte[] { STK_READ_SIGN, CRC_EOP }, 3);
+			command(new byte[] { STK_ENTER_PROGMODE, CRC_EOP }, 0);
+			syncTime = System.currentTimeMillis() - start;
+			logger.debug("Bootloader in sync after " + syncTime + " ms, signature " + hexTools.toHex(signature));
+
+			start = System.currentTimeMillis();
+			byte[] data = image.getData();
+			int pages = (image.getLength() + pageSize - 1) / pageSize;
+			writtenPages = skippedPages = rewrittenPages = 0;
+			for (int page = 0; page < pages; page++) {
+				if (image.samePage(previous, page * pageSize, pageSize)) {
+					skippedPages++;
+				} else {
+					writePage(data, page * pageSize);
+					writtenPages++;
+				}
+			}
+			writeTime = System.currentTimeMillis() - start;
+
+			if (verify) {
+				start = System.currentTimeMillis();
+				List<Integer> bad = verify(data, pages);
+				if (!bad.isEmpty()) {
+					logger.warn(bad.size() + " pages differ, rewriting them");
+					for (int page : bad) {
+						writePage(data, page * pageSize);
+						rewrittenPages++;
+					}
+					for (int page : bad) {
+						if (!verifyPage(data, page * pageSize)) {
+							throw new IOException(String.format("verify failed at 0x%04x", page * pageSize));
+						}
+					}
+				}
+				verifyTime = System.currentTimeMillis() - start;
+			}
+
+			command(new byte[] { STK_LEAVE_PROGMODE, CRC_EOP }, 0);
+		} finally {
+			serial.setDivert(null);
+			waiter = null;
+			writer.setPacing(pacing);
+		}
+	}
+
+	protected void reset() throws IOException {
+		serial.setDTR(false);
+		serial.setRTS(false);
+		sleep(RESET_LOW);
+		serial.setDTR(true);
+		serial.setRTS(true);
+		sleep(RESET_HIGH);
+	}
+
+	protected void sync() throws IOException {
+		for (int attempt = 1; attempt <= SYNC_ATTEMPTS; attempt++) {
+			// sketch output, or garbage from previous attempt
+			drain();
+			serial.write(new byte[] { STK_GET_SYNC, CRC_EOP });
+			try {
+				reply(0, SYNC_TIMEOUT);
+				return;
+			} catch (IOException e) {
+				logger.debug("sync attempt " + attempt + " : " + e.getMessage());
+			}
+		}
+		throw new IOException("bootloader doesn't answer, not a STK500v1 bootloader or wrong baudrate ?");
+	}
+
+	/**
+	 * send a command and wait its reply
+	 * @return reply data, between insync and ok bytes
+	 */
+	protected byte[] command(byte[] request, int count) throws IOException {
+		serial.write(request);
+		return reply(count, REPLY_TIMEOUT);
+	}
+
+	protected byte[] loadAddress(int address) {
+		int word = address / 2;
+		return new byte[] { STK_LOAD_ADDRESS, (byte)word, (byte)(word >> 8), CRC_EOP };
+	}
+
+	protected void writePage(byte[] data, int address) throws IOException {
+		byte[] request = new byte[5 + pageSize];
+		request[0] = STK_PROG_PAGE;
+		request[1] = (byte)(pageSize >> 8);
+		request[2] = (byte)pageSize;
+		request[3] = MEMORY_FLASH;
+		System.arraycopy(page(data, address), 0, request, 4, pageSize);
+		request[4 + pageSize] = CRC_EOP;
+		send(loadAddress(address), request);
+		reply(0, REPLY_TIMEOUT);
+	}
+
+	/**
+	 * @return indexes of pages which differ from image
+	 */
+	protected List<Integer> verify(byte[] data, int pages) throws IOException {
+		List<Integer> result = new ArrayList<Integer>();
+		for (int page = 0; page < pages; page++) {
+			if (!verifyPage(data, page * pageSize)) {
+				result.add(page);
+			}
+		}
+		return result;
+	}
+
+	protected boolean verifyPage(byte[] data, int address) throws IOException {
+		byte[] request = new byte[] { STK_READ_PAGE, (byte)(pageSize >> 8), (byte)pageSize, MEMORY_FLASH, CRC_EOP };
+		send(loadAddress(address), request);
+		return Arrays.equals(reply(pageSize, REPLY_TIMEOUT), page(data, address));
+	}
+
+	/**
+	 * send address load and page command, at once if pipelined, and wait address load reply.
+	 * Caller waits page command reply
+	 */
+	protected void send(byte[] address, byte[] request) throws IOException {
+		if (pipelined) {
+			byte[] both = Arrays.copyOf(address, address.length + request.length);
+			System.arraycopy(request, 0, both, address.length, request.length);
+			serial.write(both);
+			reply(0, REPLY_TIMEOUT);
+		} else {
+			serial.write(address);
+			reply(0, REPLY_TIMEOUT);
+			serial.write(request);
+		}
+	}
+
+	/**
+	 * @return page bytes, 0xFF beyond data
+	 */
+	protected byte[] page(byte[] data, int address) {
+		byte[] result = new byte[pageSize];
+		int count = Math.max(0, Math.min(pageSize, data.length - address));
+		System.arraycopy(data, address, result, 0, count);
+		Arrays.fill(result, count, pageSize, (byte)0xFF);
+		return result;
+	}
+
+	/**
+	 * wait a reply : insync, count bytes, ok
+	 */
+	protected byte[] reply(int count, long timeout) throws IOException {
+		byte[] result = new byte[count + 2];
+		read(result, timeout);
+		if (result[0] != STK_INSYNC) {
+			throw new IOException(String.format("bootloader not in sync, got 0x%02x", result[0] & 0xFF));
+		}
+		if (result[count + 1] != STK_OK) {
+			throw new IOException(String.format("bootloader failure, got 0x%02x", result[count + 1] & 0xFF));
+		}
+		return Arrays.copyOfRange(result, 1, count + 1);
+	}
+
+	protected void read(byte[] dest, long timeout) throws IOException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		int done = 0;
+		while (done < dest.length) {
+			done += input.read(dest, done, dest.length - done);
+			if (done == dest.length) {
+				break;
+			}
+			long wait = deadline - System.nanoTime();
+			if (wait <= 0) {
+				throw new IOException("bootloader reply timeout, got " + done + " bytes of " + dest.length);
+			}
+			LockSupport.parkNanos(wait);
+		}
+	}
+
+	protected void drain() {
+		byte[] garbage = new byte[256];
+		while (input.read(garbage, 0, garbage.length) != 0) {
+		}
+	}
+
+	static void sleep(long ms) throws IOException {
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted", e);
+		}
+	}
+
+	/**
+	 * @return device signature, like 1e 95 0f for ATmega328P
+	 */
+	public byte[] getSignature() {
+		return signature;
+	}
+
+	public int getWrittenPages() {
+		return writtenPages;
+	}
+
+	public int getSkippedPages() {
+		return skippedPages;
+	}
+
+	public int getRewrittenPages() {
+		return rewrittenPages;
+	}
+
+	/**
+	 * @return time from reset to programming mode, in ms
+	 */
+	public long getSyncTime() {
+		return syncTime;
+	}
+
+	public long getWriteTime() {
+		return writeTime;
+	}
+
+	public long getVerifyTime() {
+		return verifyTime;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("signature %s, %d pages written, %d skipped, %d rewritten, sync %d ms, write %d ms, verify %d ms",
+				signature == null ? "?" : hexTools.toHex(signature), writtenPages, skippedPages, rewrittenPages,
+				syncTime, writeTime, verifyTime);
+	}
+}
@@ -0,0 +1,111 @@
+package pif.arduino.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.text.MessageFormat;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * TCP socket stand-in for a serial port, for url like tcp://host:port
+ * (ser2net, esp-link, a simulator ...).
+ * Incoming bytes are read into a reusable buffer by a dedicated thread.
+ * DTR and RTS have no meaning here and are ignored.
+ * @author pif
+ */
+public class TcpTransport implements SerialTransport {
+	Logger logger = LogManager.getLogger();
+
+	public static final String SCHEME = "tcp://";
+	static final int CONNECT_TIMEOUT = 5000;
+
+	protected String host;
+	protected int port;
+
+	protected Socket socket;
+	protected OutputStream output;
+	protected Thread reader;
+
+	/**
+	 * @param url tcp://host:port
+	 */
+	public TcpTransport(String url) throws MySerialException {
+		String address = url.substring(SCHEME.length());
+		int colon = address.lastIndexOf(':');
+		if (colon == -1) {
+			throw new MySerialException(MessageFormat.format("Missing port number in ''{0}''.", url));
+		}
+		host = address.substring(0, colon);
+		try {
+			port = Integer.parseInt(address.substring(colon + 1));
+		} catch(NumberFormatException e) {
+			throw new MySerialException(MessageFormat.format("Bad port number in ''{0}''.", url));
+		}
+	}
+
+	@Override
+	public void open(final Receiver receiver) throws MySerialException {
+		final InputStream input;
+		// reader keeps its own reference, close() resets field
+		final Socket connection = new Socket();
+		try {
+			connection.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			connection.setTcpNoDelay(true);
+			input = connection.getInputStream();
+			output = connection.getOutputStream();
+		} catch (IOException e) {
+			try {
+				connection.close();
+			} catch (IOException ignored) {
+				// ignored
+			}
+			throw new MySerialException(MessageFormat.format("Error connecting to ''{0}:{1}''.", host, port), e);
+		}
+		socket = connection;
+		reader = new Thread("tcp reader") {
+			public void run() {
+				byte[] buffer = new byte[4096];
+				try {
+					int nb;
+					while ((nb = input.read(buffer)) > 0) {
+						receiver.onReceive(buffer, 0, nb);
+					}
+				} catch (IOException e) {
+					if (!connection.isClosed()) {
+						logger.error("Error reading from " + host + ":" + port, e);
+					}
+				}
+				logger.debug("tcp connection closed");
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) throws IOException {
+		output.write(data, offset, length);
+	}
+
+	@Override
+	public void setDTR(boolean state) {
+		logger.debug("DTR ignored on tcp link");
+	}
+
+	@Override
+	public void setRTS(boolean state) {
+		logger.debug("RTS ignored on tcp link");
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (socket != null) {
+			socket.close();
+			socket = null;
+		}
+	}
+}
@@ -0,0 +1,370 @@
+package pif.arduino.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Extract numeric fields from telemetry lines, and keep statistics per field.
+ *
+ * Lines are split on spaces, tabs, commas and semicolons. Items like
+ * key=value or key:value give a field named key, bare numbers (CSV) a field
+ * named after their position, like #0, #1 ...
+ * Values are parsed directly from bytes, and fields are looked up by their
+ * name bytes, thus a line with known fields doesn't allocate anything.
+ *
+ * Each field keeps count, min, max, mean, and a log bucket histogram of fixed
+ * size giving quantiles with {@link #RELATIVE_ERROR} relative error.
+ * Methods are synchronized : lines are parsed by incoming data thread, while
+ * statistics are read from command one.
+ * @author pif
+ */
+public class TelemetryParser {
+	public static final int MAX_FIELDS = 256;
+	public static final int MAX_NAME = 64;
+
+	// histogram buckets are [GAMMA^i, GAMMA^(i+1)[
+	static final double GAMMA = 1.04;
+	static final double LOG_GAMMA = Math.log(GAMMA);
+	public static final double RELATIVE_ERROR = (GAMMA - 1) / (GAMMA + 1);
+	// bucket indexes from -BUCKETS/2 to BUCKETS/2-1 cover about 1e-9 .. 5e8
+	static final int BUCKETS = 1024;
+	static final int BUCKET_OFFSET = BUCKETS / 2;
+
+	static final double[] POWERS_OF_TEN = new double[23];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	/**
+	 * statistics of a field
+	 */
+	public static class Field {
+		protected final String name;
+		protected final byte[] key;
+		protected long count = 0;
+		protected double min = Double.POSITIVE_INFINITY;
+		protected double max = Double.NEGATIVE_INFINITY;
+		protected double sum = 0;
+		protected double last = Double.NaN;
+		// histograms of positive and negative values, and count of zeros
+		protected final int[] positive = new int[BUCKETS];
+		protected final int[] negative = new int[BUCKETS];
+		protected long zeros = 0;
+
+		Field(byte[] key) {
+			this.key = key;
+			this.name = new String(key);
+		}
+
+		void add(double value) {
+			count++;
+			sum += value;
+			last = value;
+			if (value < min) {
+				min = value;
+			}
+			if (value > max) {
+				max = value;
+			}
+			if (value == 0) {
+				zeros++;
+			} else if (value > 0) {
+				positive[bucket(value)]++;
+			} else {
+				negative[bucket(-value)]++;
+			}
+		}
+
+		static int bucket(double magnitude) {
+			int index = (int)Math.floor(Math.log(magnitude) / LOG_GAMMA) + BUCKET_OFFSET;
+			return Math.max(0, Math.min(BUCKETS - 1, index));
+		}
+
+		/**
+		 * @return middle of bucket, in relative terms
+		 */
+		static double value(int bucket) {
+			return 2 * Math.pow(GAMMA, bucket - BUCKET_OFFSET + 1) / (GAMMA + 1);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMin() {
+			return min;
+		}
+
+		public double getMax() {
+			return max;
+		}
+
+		public double getMean() {
+			return count == 0 ? Double.NaN : sum / count;
+		}
+
+		public double getLast() {
+			return last;
+		}
+
+		/**
+		 * @param q between 0 and 1, like 0.99 for 99th percentile
+		 */
+		public double getQuantile(double q) {
+			if (count == 0) {
+				return Double.NaN;
+			}
+			long rank = (long)Math.ceil(q * count);
+			if (rank < 1) {
+				rank = 1;
+			}
+			long seen = 0;
+			// from most negative to most positive
+			for (int i = BUCKETS - 1; i >= 0; i--) {
+				seen += negative[i];
+				if (seen >= rank) {
+					return clamp(-value(i));
+				}
+			}
+			seen += zeros;
+			if (seen >= rank) {
+				return 0;
+			}
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += positive[i];
+				if (seen >= rank) {
+					return clamp(value(i));
+				}
+			}
+			return max;
+		}
+
+		protected double clamp(double value) {
+			return Math.max(min, Math.min(max, value));
+		}
+	}
+
+	// fields by name, open addressing on name hash
+	protected Field[] table = new Field[2 * MAX_FIELDS];
+	protected final List<Field> fields = new ArrayList<Field>();
+
+	// statistics
+	protected long lines = 0;
+	protected long values = 0;
+	protected long ignored = 0;
+
+	/**
+	 * parse a line, without its terminator
+	 */
+	public synchronized void parse(byte[] line, int from, int length) {
+		lines++;
+		int end = from + length;
+		int i = from;
+		int position = 0;
+		while (i < end) {
+			// skip separators
+			while (i < end && isSeparator(line[i])) {
+				i++;
+			}
+			if (i == end) {
+				break;
+			}
+			int start = i;
+			int equal = -1;
+			while (i < end && !isSeparator(line[i])) {
+				if (equal == -1 && (line[i] == '=' || line[i] == ':')) {
+					equal = i;
+				}
+				i++;
+			}
+			if (equal != -1) {
+				double value = parseDouble(line, equal + 1, i);
+				if (!Double.isNaN(value) && equal > start) {
+					add(line, start, equal - start, value);
+				} else {
+					ignored++;
+				}
+			} else {
+				double value = parseDouble(line, start, i);
+				if (!Double.isNaN(value)) {
+					add(position, value);
+				} else {
+					ignored++;
+				}
+			}
+			position++;
+		}
+	}
+
+	static boolean isSeparator(byte b) {
+		return b == ' ' || b == '\t' || b == ',' || b == ';';
+	}
+
+	/**
+	 * parse a decimal number like -12, 3.25 or 1.5e-3
+	 * @return NaN if bytes aren't a number
+	 */
+	public static double parseDouble(byte[] data, int from, int to) {
+		int i = from;
+		boolean negative = false;
+		if (i < to && (data[i] == '-' || data[i] == '+')) {
+			negative = (data[i] == '-');
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0, scale = 0;
+		boolean dot = false;
+		for (; i < to; i++) {
+			byte b = data[i];
+			if (b >= '0' && b <= '9') {
+				if (mantissa < 100000000000000000L) {
+					mantissa = mantissa * 10 + (b - '0');
+					if (dot) {
+						scale--;
+					}
+				} else if (!dot) {
+					// too many significant digits, keep magnitude
+					scale++;
+				}
+				digits++;
+			} else if (b == '.' && !dot) {
+				dot = true;
+			} else {
+				break;
+			}
+		}
+		if (digits == 0) {
+			return Double.NaN;
+		}
+		if (i < to && (data[i] == 'e' || data[i] == 'E')) {
+			i++;
+			boolean negativeExponent = false;
+			if (i < to && (data[i] == '-' || data[i] == '+')) {
+				negativeExponent = (data[i] == '-');
+				i++;
+			}
+			int exponent = 0, exponentDigits = 0;
+			for (; i < to && data[i] >= '0' && data[i] <= '9' && exponent < 1000; i++) {
+				exponent = exponent * 10 + (data[i] - '0');
+				exponentDigits++;
+			}
+			if (exponentDigits == 0) {
+				return Double.NaN;
+			}
+			scale += negativeExponent ? -exponent : exponent;
+		}
+		if (i != to) {
+			// trailing garbage, like a unit
+			return Double.NaN;
+		}
+		double value = mantissa;
+		if (scale < 0) {
+			value = (-scale < POWERS_OF_TEN.length) ? value / POWERS_OF_TEN[-scale] : value * Math.pow(10, scale);
+		} else if (scale > 0) {
+			value = (scale < POWERS_OF_TEN.length) ? value * POWERS_OF_TEN[scale] : value * Math.pow(10, scale);
+		}
+		return negative ? -value : value;
+	}
+
+	protected void add(byte[] name, int from, int length, double value) {
+		length = Math.min(length, MAX_NAME);
+		int hash = 1;
+		for (int i = from; i < from + length; i++) {
+			hash = 31 * hash + name[i];
+		}
+		int mask = table.length - 1;
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		for (;;) {
+			Field field = table[slot];
+			if (field == null) {
+				if (fields.size() == MAX_FIELDS) {
+					ignored++;
+					return;
+				}
+				field = new Field(Arrays.copyOfRange(name, from, from + length));
+				table[slot] = field;
+				fields.add(field);
+			} else if (!sameKey(field.key, name, from, length)) {
+				slot = (slot + 1) & mask;
+				continue;
+			}
+			field.add(value);
+			values++;
+			return;
+		}
+	}
+
+	// names of positional fields, built once
+	protected static final byte[][] POSITIONS = new byte[32][];
+	static {
+		for (int i = 0; i < POSITIONS.length; i++) {
+			POSITIONS[i] = ("#" + i).getBytes();
+		}
+	}
+
+	protected void add(int position, double value) {
+		if (position >= POSITIONS.length) {
+			ignored++;
+			return;
+		}
+		add(POSITIONS[position], 0, POSITIONS[position].length, value);
+	}
+
+	static boolean sameKey(byte[] key, byte[] name, int from, int length) {
+		if (key.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (key[i] != name[from + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public synchronized void reset() {
+		table = new Field[2 * MAX_FIELDS];
+		fields.clear();
+		lines = values = ignored = 0;
+	}
+
+	public synchronized long getLines() {
+		return lines;
+	}
+
+	public synchronized long getValues() {
+		return values;
+	}
+
+	/**
+	 * @return number of items which weren't numbers
+	 */
+	public synchronized long getIgnored() {
+		return ignored;
+	}
+
+	/**
+	 * @return statistics table, one line per field
+	 */
+	public synchronized String report() {
+		StringBuilder result = new StringBuilder();
+		result.append(String.format("%-16s %10s %12s %12s %12s %12s %12s %12s",
+				"field", "count", "last", "min", "mean", "p50", "p99", "max"));
+		for (Field field : fields) {
+			result.append(String.format("%n%-16s %10d %12.6g %12.6g %12.6g %12.6g %12.6g %12.6g",
+					field.getName(), field.getCount(), field.getLast(), field.getMin(), field.getMean(),
+					field.getQuantile(0.5), field.getQuantile(0.99), field.getMax()));
+		}
+		result.append(String.format("%n%d lines, %d values, %d items ignored (quantiles within %.0f%%)",
+				lines, values, ignored, RELATIVE_ERROR * 100));
+		return result.toString();
+	}
+}
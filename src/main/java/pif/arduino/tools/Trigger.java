@@ -0,0 +1,119 @@
+package pif.arduino.tools;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A byte pattern looked for in incoming data, and the action to run when
+ * it's found : a console command if it begins with '!', else text to send.
+ *
+ * A trigger doesn't fire again before holdoff delay, so that a burst of
+ * occurrences runs its action once.
+ * Holdoff and latency use receive time of the chunk holding the end of the
+ * occurrence : latency goes from byte arrival to action dispatch, time spent
+ * in flush buffer included.
+ * @author pif
+ */
+public class Trigger {
+	public static final int DEFAULT_HOLDOFF = 1000;
+
+	protected final byte[] pattern;
+	protected final String action;
+	protected final long holdoff;
+
+	protected long lastFire = 0;
+	protected boolean fired = false;
+
+	// statistics
+	protected volatile long occurrences = 0;
+	protected volatile long dispatches = 0;
+	protected volatile long totalLatency = 0;
+	protected volatile long maxLatency = 0;
+
+	/**
+	 * @param holdoff min delay between two firings, in ms
+	 */
+	public Trigger(byte[] pattern, String action, int holdoff) {
+		if (pattern.length == 0) {
+			throw new IllegalArgumentException("empty trigger pattern");
+		}
+		if (action.isEmpty()) {
+			throw new IllegalArgumentException("empty trigger action");
+		}
+		this.pattern = pattern;
+		this.action = action;
+		this.holdoff = TimeUnit.MILLISECONDS.toNanos(holdoff);
+	}
+
+	public byte[] getPattern() {
+		return pattern;
+	}
+
+	public String getAction() {
+		return action;
+	}
+
+	public boolean isCommand() {
+		return action.startsWith("!");
+	}
+
+	public long getHoldoff() {
+		return TimeUnit.NANOSECONDS.toMillis(holdoff);
+	}
+
+	/**
+	 * called from incoming data thread for each occurrence
+	 * @param time receive time of occurrence
+	 * @return true if action must be run, false if in holdoff delay
+	 */
+	public synchronized boolean occurred(long time) {
+		occurrences++;
+		if (fired && time - lastFire < holdoff) {
+			return false;
+		}
+		fired = true;
+		lastFire = time;
+		return true;
+	}
+
+	/**
+	 * called when action is dispatched
+	 * @param time receive time of occurrence, System.nanoTime() reference
+	 */
+	public synchronized void dispatched(long time) {
+		long latency = System.nanoTime() - time;
+		dispatches++;
+		totalLatency += latency;
+		if (latency > maxLatency) {
+			maxLatency = latency;
+		}
+	}
+
+	public long getOccurrences() {
+		return occurrences;
+	}
+
+	public long getDispatches() {
+		return dispatches;
+	}
+
+	/**
+	 * @return average delay between byte arrival and dispatch, in µs
+	 */
+	public long getAverageLatency() {
+		long count = dispatches;
+		return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalLatency / count);
+	}
+
+	/**
+	 * @return max delay between byte arrival and dispatch, in µs
+	 */
+	public long getMaxLatency() {
+		return TimeUnit.NANOSECONDS.toMicros(maxLatency);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("\"%s\" holdoff=%d %s : %d occurrences, %d dispatches, latency avg %d µs, max %d µs",
+				new String(pattern), getHoldoff(), action, occurrences, dispatches, getAverageLatency(), getMaxLatency());
+	}
+}
@@ -10,49 +10,88 @@ public class hexTools {
 	}
 
 	static public String toHex(byte b) {
-		return "" + hex((byte)((b >> 4) & 0x0f)) + hex((byte)(b & 0x0f));
+		return new String(new char[] { HexDumpRenderer.HIGH[b & 0xff], HexDumpRenderer.LOW[b & 0xff] });
 	}
 
-	static protected String hexDumpTemplate =
-			".. .. .. .. .. .. .. ..  .. .. .. .. .. .. .. .. :                 ";
+	/**
+	 * @return bytes as hex digits separated by spaces, like "1e 95 0f"
+	 */
+	static public String toHex(byte data[]) {
+		StringBuilder result = new StringBuilder();
+		for (byte b : data) {
+			if (result.length() != 0) {
+				result.append(' ');
+			}
+			result.append(toHex(b));
+		}
+		return result.toString();
+	}
 
 	static public String toHexDump(byte data[]) {
 		return toHexDump(data, data.length);
 	}
+
+	static protected String hexDumpTemplate =
+			".. .. .. .. .. .. .. ..  .. .. .. .. .. .. .. .. :                 ";
+
+	/**
+	 * dump data 16 bytes per line, hex then ascii, without offsets nor trailing newline.
+	 * Console hex mode uses {@link HexDumpRenderer} for hexdump -C format
+	 */
 	static public String toHexDump(byte data[], int length) {
-		StringBuffer result = new StringBuffer(length * 4);
-		StringBuffer line = null;
+		if (data == null || length == 0) {
+			return "null";
+		}
+		StringBuilder result = new StringBuilder(length * 4);
+		char[] line = hexDumpTemplate.toCharArray();
 		// position into template for hex part / ascii part
-		int i, h = 0, a = 0;
-		for (i = 0; i < length; i++) {
+		int h = 0, a = 51;
+		for (int i = 0; i < length; i++) {
 			if (i % 16 == 0) {
-				// ended a line -> append it to result, excepted at start of loop
 				if (i != 0) {
 					if (i > 16) {
 						result.append('\n');
 					}
 					result.append(line);
+					line = hexDumpTemplate.toCharArray();
 				}
-				line = new StringBuffer(hexDumpTemplate);
 				h = 0;
 				a = 51;
 			} else if (i % 8 == 0) {
 				// skip a space at line middle
 				h++;
 			}
-			line.setCharAt(h, hex((byte)((data[i] >> 4) & 0x0f)));
-			line.setCharAt(h + 1, hex((byte)(data[i] & 0x0f)));
-			line.setCharAt(a, (char)((data[i] > 32 && data[i] < 128) ? data[i] : '.'));
-			h+=3;
+			int b = data[i] & 0xff;
+			line[h] = HexDumpRenderer.HIGH[b];
+			line[h + 1] = HexDumpRenderer.LOW[b];
+			line[a] = (data[i] > 32) ? (char)data[i] : '.';
+			h += 3;
 			a++;
 		}
-		// append remaining line if it's not an empty one
-//		if (i % 16 != 0) {
-			if (i > 16) {
-				result.append('\n');
-			}
-			result.append(line);
-//		}
+		if (length > 16) {
+			result.append('\n');
+		}
+		result.append(line);
 		return result.toString();
 	}
+
+	/**
+	 * parse a string of hex digits, like "0d0a", spaces being ignored
+	 */
+	static public byte[] fromHex(String hex) {
+		hex = hex.replace(" ", "");
+		if (hex.length() % 2 != 0) {
+			throw new IllegalArgumentException("odd number of hex digits in '" + hex + "'");
+		}
+		byte[] result = new byte[hex.length() / 2];
+		for (int i = 0; i < result.length; i++) {
+			int high = Character.digit(hex.charAt(2 * i), 16);
+			int low = Character.digit(hex.charAt(2 * i + 1), 16);
+			if (high < 0 || low < 0) {
+				throw new IllegalArgumentException("bad hex digit in '" + hex + "'");
+			}
+			result[i] = (byte)(high << 4 | low);
+		}
+		return result;
+	}
 }